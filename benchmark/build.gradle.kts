@@ -0,0 +1,52 @@
+plugins {
+    alias(libs.plugins.jetbrains.kotlin.jvm)
+    alias(libs.plugins.jmh)
+    alias(libs.plugins.kotlinx.serialization)
+}
+
+// Host benchmarks for service code, run with ./gradlew :benchmark:jmh
+// Service sources listed here are compiled for the JVM together with the :stub sources, which
+// can't be a dependency of a JVM module as :stub is an Android library (an AAR built by AGP).
+// The android classes neither of them has are replaced by the minimal versions in src/main/java.
+val serviceSources by tasks.registering(Sync::class) {
+    from(rootProject.file("service/src/main/java")) {
+        include("io/github/a13e300/tricky_store/Cache.kt")
+        include("io/github/a13e300/tricky_store/DeviceConfig.kt")
+        include("io/github/a13e300/tricky_store/KeyStates.kt")
+        include("io/github/a13e300/tricky_store/Logger.java")
+        include("io/github/a13e300/tricky_store/Stats.kt")
+        include("io/github/a13e300/tricky_store/SignaturePool.kt")
+        include("io/github/a13e300/tricky_store/util.kt")
+        include("io/github/a13e300/tricky_store/keystore/**")
+    }
+    from(rootProject.file("stub/src/main/java")) {
+        include("**/*.java")
+        // throws, src/main/java has one answering with the defaults
+        exclude("android/os/SystemProperties.java")
+    }
+    into(layout.buildDirectory.dir("generated/service"))
+}
+
+sourceSets.main {
+    java.srcDir(serviceSources)
+    kotlin.srcDir(serviceSources)
+}
+
+dependencies {
+    implementation(libs.bcpkix.jdk18on)
+    // TomlComments of DeviceConfig
+    implementation(libs.ktoml.core)
+    // XmlPullParser is part of the android framework
+    implementation(libs.kxml2)
+}
+
+kotlin {
+    jvmToolchain(17)
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh
+    resultFormat = "JSON"
+    // allocation rate of each benchmark
+    profilers.add("gc")
+}
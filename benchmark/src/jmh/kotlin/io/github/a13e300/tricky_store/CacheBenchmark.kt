@@ -0,0 +1,87 @@
+package io.github.a13e300.tricky_store
+
+import android.system.keystore2.KeyDescriptor
+import android.system.keystore2.KeyEntryResponse
+import android.system.keystore2.KeyMetadata
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.security.KeyPairGenerator
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Key lookup done by createOperation with many keys resident, compared against
+ * the full scan it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class CacheBenchmark {
+    @Param("1000", "100000")
+    var keys = 0
+
+    @Param("100")
+    var uids = 0
+
+    private var next = 0
+
+    // same entries in a plain map, looked up like Cache did before it was indexed
+    private val scanned = ConcurrentHashMap<Cache.Key, Cache.Info>()
+
+    @Setup(Level.Trial)
+    fun setup() {
+        Cache.configure(Int.MAX_VALUE, Long.MAX_VALUE, Int.MAX_VALUE)
+        // the key material doesn't matter for lookups
+        val keyPair = KeyPairGenerator.getInstance("EC").genKeyPair()
+        for (i in 0 until keys) {
+            val uid = uidOf(i)
+            val response = KeyEntryResponse().apply {
+                metadata = KeyMetadata().apply {
+                    key = KeyDescriptor().apply {
+                        domain = 4
+                        nspace = i.toLong()
+                        alias = "key$i"
+                    }
+                }
+            }
+            val key = Cache.Key(uid, "key$i")
+            val info = Cache.Info(key, keyPair, emptyList(), response)
+            Cache.putKey(key, info)
+            scanned[key] = info
+        }
+    }
+
+    private fun uidOf(i: Int) = 10000 + i % uids
+
+    private fun nextKey(): Int {
+        next = (next + 7919) % keys
+        return next
+    }
+
+    @Benchmark
+    fun indexed(): List<Cache.Info> {
+        val i = nextKey()
+        return Cache.getInfoByNspace(uidOf(i), i.toLong())
+    }
+
+    @Benchmark
+    fun scan(): List<Cache.Info> {
+        val i = nextKey()
+        val uid = uidOf(i)
+        val nspace = i.toLong()
+        return scanned.values.filter { it.key.uid == uid && it.response.metadata?.key?.nspace == nspace }
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.a13e300.tricky_store
+
+import android.hardware.security.keymint.Algorithm
+import android.hardware.security.keymint.Digest
+import android.hardware.security.keymint.KeyPurpose
+import io.github.a13e300.tricky_store.keystore.BENCHMARK_UID
+import io.github.a13e300.tricky_store.keystore.CertHack
+import io.github.a13e300.tricky_store.keystore.FakePackageManager
+import io.github.a13e300.tricky_store.keystore.Utils
+import io.github.a13e300.tricky_store.keystore.keybox
+import org.bouncycastle.asn1.ASN1Integer
+import org.bouncycastle.asn1.ASN1OctetString
+import org.bouncycastle.asn1.ASN1Sequence
+import org.bouncycastle.asn1.ASN1TaggedObject
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Group
+import org.openjdk.jmh.annotations.GroupThreads
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.security.KeyPair
+import java.security.interfaces.ECPublicKey
+import java.util.Date
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+
+/**
+ * generateKey, exportKey and attestKey of keystore1 racing on the same keys, as binder threads
+ * run them. Every attestation checks the chain it got and fails the run on a mix-up: the leaf has
+ * the challenge of its own request and the key size of the parameters its pair was exported for,
+ * and the parameters of the key never get a challenge.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+open class KeyStatesBenchmark {
+    @Param("1", "4")
+    var keys = 0
+
+    private val keyStates = KeyStates()
+    private lateinit var aliases: Array<KeyStates.Key>
+
+    @Setup(Level.Trial)
+    fun setup() {
+        Config.setPm(FakePackageManager)
+        CertHack.readFromXml(keybox(params(256)), null)
+        aliases = Array(keys) { KeyStates.Key(BENCHMARK_UID, "key$it") }
+        aliases.forEach { keyStates.generate(it, params(256)) }
+    }
+
+    private fun key() = aliases[ThreadLocalRandom.current().nextInt(aliases.size)]
+
+    // a new instance each time, as parsed from each generateKey transaction
+    private fun params(keySize: Int) = CertHack.KeyGenParameters().apply {
+        algorithm = Algorithm.EC
+        this.keySize = keySize
+        setEcCurveName(keySize)
+        purpose = mutableListOf(KeyPurpose.SIGN)
+        digest = mutableListOf(Digest.SHA_2_256)
+        certificateNotBefore = Date()
+    }
+
+    @Benchmark
+    @Group("flow")
+    @GroupThreads(2)
+    fun generate() {
+        keyStates.generate(key(), params(if (ThreadLocalRandom.current().nextBoolean()) 256 else 384))
+    }
+
+    @Benchmark
+    @Group("flow")
+    @GroupThreads(2)
+    fun export(): KeyPair = checkNotNull(keyStates.export(key())) { "no key pair exported" }
+
+    @Benchmark
+    @Group("flow")
+    @GroupThreads(4)
+    fun attest(): List<ByteArray>? {
+        val key = key()
+        val challenge = ByteArray(16).also { ThreadLocalRandom.current().nextBytes(it) }
+        // not exported since it was last generated
+        val chain = keyStates.attest(key, challenge) ?: return null
+        check(keyStates.params(key)?.attestationChallenge == null) { "challenge set on the shared parameters" }
+
+        val leaf = Utils.toCertificate(chain[0])
+        val description = ASN1Sequence.getInstance(
+            ASN1OctetString.getInstance(leaf.getExtensionValue(ATTESTATION_OID)).octets
+        )
+        check(ASN1OctetString.getInstance(description.getObjectAt(4)).octets.contentEquals(challenge)) {
+            "challenge of another request"
+        }
+        val keySize = ASN1Sequence.getInstance(description.getObjectAt(7))
+            .map { ASN1TaggedObject.getInstance(it) }
+            .first { it.tagNo == 3 }
+            .let { ASN1Integer.getInstance(it.explicitBaseObject).intValueExact() }
+        val pairSize = (leaf.publicKey as ECPublicKey).params.curve.field.fieldSize
+        check(pairSize == keySize) { "pair of $pairSize bits attested with parameters of $keySize bits" }
+        return chain
+    }
+
+    private companion object {
+        const val ATTESTATION_OID = "1.3.6.1.4.1.11129.2.1.17"
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.a13e300.tricky_store
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.security.KeyPairGenerator
+import java.security.PrivateKey
+import java.security.Signature
+import java.security.spec.ECGenParameterSpec
+import java.util.concurrent.TimeUnit
+
+/**
+ * Sign operations per second of an emulated keystore operation: begin, one small update, finish.
+ * fresh is what KeyStoreOperation did before Signatures were pooled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class SignaturePoolBenchmark {
+    @Param("EC", "RSA")
+    var algorithm = ""
+
+    @Param("64")
+    var payloadSize = 0
+
+    private lateinit var key: PrivateKey
+    private lateinit var signatureAlgorithm: String
+    private lateinit var payload: ByteArray
+
+    @Setup(Level.Trial)
+    fun setup() {
+        val generator = KeyPairGenerator.getInstance(algorithm)
+        if (algorithm == "EC") generator.initialize(ECGenParameterSpec("secp256r1")) else generator.initialize(2048)
+        key = generator.generateKeyPair().private
+        signatureAlgorithm = if (algorithm == "EC") "SHA256withECDSA" else "SHA256withRSA"
+        payload = ByteArray(payloadSize) { it.toByte() }
+    }
+
+    @Benchmark
+    fun fresh(): ByteArray = Signature.getInstance(signatureAlgorithm).run {
+        initSign(key)
+        update(payload)
+        sign()
+    }
+
+    @Benchmark
+    fun pooled(): ByteArray {
+        val signature = SignaturePool.acquire(key, signatureAlgorithm)
+        signature.update(payload)
+        return signature.sign().also { SignaturePool.release(key, signatureAlgorithm, signature) }
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.a13e300.tricky_store.keystore
+
+import android.hardware.security.keymint.Algorithm
+import android.hardware.security.keymint.EcCurve
+import android.hardware.security.keymint.KeyParameter
+import android.hardware.security.keymint.KeyParameterValue
+import android.hardware.security.keymint.Tag
+import android.system.keystore2.KeyDescriptor
+import io.github.a13e300.tricky_store.Config
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.security.KeyPair
+import java.security.cert.Certificate
+import java.util.concurrent.TimeUnit
+
+/**
+ * The certificate pipeline of generateKey and of hacking hardware attestations, per keybox shape.
+ * Run with the gc profiler (configured in build.gradle.kts) for the allocation rate,
+ * sample time mode reports the latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput, Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class CertHackBenchmark {
+    @Param("EC_P256", "EC_P384", "RSA_2048", "RSA_4096")
+    var shape = ""
+
+    private lateinit var keyboxXml: String
+    private lateinit var params: CertHack.KeyGenParameters
+    private lateinit var keyPair: KeyPair
+    private lateinit var attestedChain: Array<Certificate>
+    private lateinit var attestedLeaf: ByteArray
+    private val descriptor = KeyDescriptor().apply { alias = "benchmark" }
+
+    @Setup(Level.Trial)
+    fun setup() {
+        Config.setPm(FakePackageManager)
+        // no package change poller on the host and nothing changes, cached ids stay valid
+        ApplicationIdCache.setTracking(true)
+        params = CertHack.KeyGenParameters(keyParameters())
+        keyboxXml = keybox(params)
+        CertHack.readFromXml(keyboxXml, null)
+        keyPair = CertHack.buildKeyPair(params)
+        // stands in for the chain of a real hardware attestation
+        attestedChain = CertHack.generateChain(BENCHMARK_UID, params, keyPair)!!
+            .map<ByteArray, Certificate> { Utils.toCertificate(it) }.toTypedArray()
+        attestedLeaf = attestedChain[0].encoded
+    }
+
+    private fun keyParameters(): Array<KeyParameter> {
+        fun param(tag: Int, value: KeyParameterValue) = KeyParameter().apply {
+            this.tag = tag
+            this.value = value
+        }
+
+        val (algorithm, size) = shape.split("_")
+        val parameters = mutableListOf(
+            param(Tag.PURPOSE, KeyParameterValue.keyPurpose(2)),
+            param(Tag.DIGEST, KeyParameterValue.digest(4)),
+            param(Tag.ATTESTATION_CHALLENGE, KeyParameterValue.blob(ByteArray(32) { it.toByte() })),
+            param(Tag.CERTIFICATE_NOT_BEFORE, KeyParameterValue.dateTime(System.currentTimeMillis())),
+        )
+        if (algorithm == "EC") {
+            parameters += param(Tag.ALGORITHM, KeyParameterValue.algorithm(Algorithm.EC))
+            parameters += param(Tag.KEY_SIZE, KeyParameterValue.integer(size.drop(1).toInt()))
+            parameters += param(Tag.EC_CURVE, KeyParameterValue.ecCurve(if (size == "P256") EcCurve.P_256 else EcCurve.P_384))
+        } else {
+            parameters += param(Tag.ALGORITHM, KeyParameterValue.algorithm(Algorithm.RSA))
+            parameters += param(Tag.KEY_SIZE, KeyParameterValue.integer(size.toInt()))
+            parameters += param(Tag.RSA_PUBLIC_EXPONENT, KeyParameterValue.longInteger(65537))
+        }
+        return parameters.toTypedArray()
+    }
+
+    @Benchmark
+    fun generateKeyPair() = CertHack.generateKeyPair(BENCHMARK_UID, descriptor, null, params)
+
+    @Benchmark
+    fun generateChain() = CertHack.generateChain(BENCHMARK_UID, params, keyPair)
+
+    @Benchmark
+    fun createExtension() = CertHack.createExtension(params, BENCHMARK_UID)
+
+    @Benchmark
+    fun hackCertificateChain() = CertHack.hackCertificateChain(attestedChain)
+
+    @Benchmark
+    fun hackCertificateChainUSR() = CertHack.hackCertificateChainUSR(attestedLeaf, descriptor.alias, BENCHMARK_UID)
+
+    @Benchmark
+    fun readFromXml() = CertHack.readFromXml(keyboxXml, null)
+}
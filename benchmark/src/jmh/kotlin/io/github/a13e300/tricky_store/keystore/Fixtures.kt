@@ -0,0 +1,97 @@
+package io.github.a13e300.tricky_store.keystore
+
+import android.content.pm.ChangedPackages
+import android.content.pm.IPackageManager
+import android.content.pm.PackageInfo
+import android.content.pm.ParceledListSlice
+import android.content.pm.Signature
+import android.hardware.security.keymint.Algorithm
+import org.bouncycastle.asn1.x500.X500Name
+import org.bouncycastle.asn1.x509.BasicConstraints
+import org.bouncycastle.asn1.x509.Extension
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder
+import java.io.StringWriter
+import java.math.BigInteger
+import java.security.KeyPair
+import java.security.cert.X509Certificate
+import java.util.Date
+import java.util.concurrent.TimeUnit
+
+// Keybox and package manager shared by the benchmarks attesting keys.
+
+internal const val BENCHMARK_UID = 10123
+internal const val BENCHMARK_PACKAGE = "io.github.a13e300.benchmark"
+
+// keybox.xml with a root and an attestation key of the shape of the parameters
+internal fun keybox(params: CertHack.KeyGenParameters): String {
+    val signature = if (params.algorithm == Algorithm.EC) "SHA256withECDSA" else "SHA256withRSA"
+    val root = CertHack.buildKeyPair(params)
+    val attestation = CertHack.buildKeyPair(params)
+    val rootName = X500Name("CN=Benchmark Root")
+    val rootCert = certificate(rootName, rootName, root, root, signature)
+    val attestationCert = certificate(rootName, X500Name("CN=Benchmark Attestation"), root, attestation, signature)
+    fun pem(o: Any) = StringWriter().also { JcaPEMWriter(it).use { w -> w.writeObject(o) } }.toString()
+    return """
+        <?xml version="1.0"?>
+        <AndroidAttestation>
+        <NumberOfKeyboxes>1</NumberOfKeyboxes>
+        <Keybox DeviceID="benchmark">
+        <Key algorithm="${if (params.algorithm == Algorithm.EC) "ecdsa" else "rsa"}">
+        <PrivateKey format="pem">
+        ${pem(attestation.private)}
+        </PrivateKey>
+        <CertificateChain>
+        <NumberOfCertificates>2</NumberOfCertificates>
+        <Certificate format="pem">
+        ${pem(attestationCert)}
+        </Certificate>
+        <Certificate format="pem">
+        ${pem(rootCert)}
+        </Certificate>
+        </CertificateChain>
+        </Key>
+        </Keybox>
+        </AndroidAttestation>
+    """.trimIndent()
+}
+
+private fun certificate(
+    issuer: X500Name, subject: X500Name, issuerKey: KeyPair, subjectKey: KeyPair, signature: String
+): X509Certificate {
+    val now = System.currentTimeMillis()
+    val builder = JcaX509v3CertificateBuilder(
+        issuer, BigInteger.ONE, Date(now), Date(now + TimeUnit.DAYS.toMillis(3650)), subject, subjectKey.public
+    ).addExtension(Extension.basicConstraints, true, BasicConstraints(true))
+    val holder = builder.build(JcaContentSignerBuilder(signature).build(issuerKey.private))
+    return JcaX509CertificateConverter().getCertificate(holder)
+}
+
+internal object FakePackageManager : IPackageManager {
+    private val signature = Signature(ByteArray(256) { it.toByte() })
+
+    override fun getPackagesForUid(uid: Int) = arrayOf(BENCHMARK_PACKAGE)
+
+    override fun getPackageInfo(packageName: String, flags: Long, userId: Int) = PackageInfo().apply {
+        this.packageName = packageName
+        signatures = arrayOf(signature)
+        versionCode = 1
+    }
+
+    override fun getPackageInfo(packageName: String, flags: Int, userId: Int) =
+        getPackageInfo(packageName, flags.toLong(), userId)
+
+    override fun getPackageUid(packageName: String, flags: Long, userId: Int) = BENCHMARK_UID
+
+    override fun getPackageUid(packageName: String, flags: Int, userId: Int) = BENCHMARK_UID
+
+    // no apex packages, the module hash is the digest of an empty sequence
+    override fun getInstalledPackages(flags: Long, userId: Int) = ParceledListSlice<PackageInfo>(emptyList())
+
+    override fun getInstalledPackages(flags: Int, userId: Int) = getInstalledPackages(flags.toLong(), userId)
+
+    // nothing changes while benchmarking
+    override fun getChangedPackages(sequenceNumber: Int, userId: Int): ChangedPackages? = null
+}
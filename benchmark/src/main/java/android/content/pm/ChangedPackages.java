@@ -0,0 +1,21 @@
+package android.content.pm;
+
+import java.util.List;
+
+public final class ChangedPackages {
+    private final int sequenceNumber;
+    private final List<String> packageNames;
+
+    public ChangedPackages(int sequenceNumber, List<String> packageNames) {
+        this.sequenceNumber = sequenceNumber;
+        this.packageNames = packageNames;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public List<String> getPackageNames() {
+        return packageNames;
+    }
+}
@@ -0,0 +1,6 @@
+package android.content.pm;
+
+public abstract class PackageManager {
+    public static final int GET_SIGNATURES = 0x00000040;
+    public static final int MATCH_APEX = 0x40000000;
+}
@@ -0,0 +1,15 @@
+package android.content.pm;
+
+import java.util.List;
+
+public class ParceledListSlice<T> {
+    private final List<T> list;
+
+    public ParceledListSlice(List<T> list) {
+        this.list = list;
+    }
+
+    public List<T> getList() {
+        return list;
+    }
+}
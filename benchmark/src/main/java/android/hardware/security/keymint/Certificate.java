@@ -0,0 +1,5 @@
+package android.hardware.security.keymint;
+
+public class Certificate {
+    public byte[] encodedCertificate;
+}
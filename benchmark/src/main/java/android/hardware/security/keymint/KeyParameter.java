@@ -0,0 +1,6 @@
+package android.hardware.security.keymint;
+
+public class KeyParameter {
+    public int tag;
+    public KeyParameterValue value;
+}
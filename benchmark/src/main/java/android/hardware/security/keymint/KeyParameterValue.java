@@ -0,0 +1,82 @@
+package android.hardware.security.keymint;
+
+// only the accessors used by the service, the union keeps a single value
+public final class KeyParameterValue {
+    private final Object value;
+
+    private KeyParameterValue(Object value) {
+        this.value = value;
+    }
+
+    public static KeyParameterValue algorithm(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue digest(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue paddingMode(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue ecCurve(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue keyPurpose(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue integer(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue longInteger(long value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue dateTime(long value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue blob(byte[] value) {
+        return new KeyParameterValue(value);
+    }
+
+    public int getAlgorithm() {
+        return (Integer) value;
+    }
+
+    public int getDigest() {
+        return (Integer) value;
+    }
+
+    public int getPaddingMode() {
+        return (Integer) value;
+    }
+
+    public int getEcCurve() {
+        return (Integer) value;
+    }
+
+    public int getKeyPurpose() {
+        return (Integer) value;
+    }
+
+    public int getInteger() {
+        return (Integer) value;
+    }
+
+    public long getLongInteger() {
+        return (Long) value;
+    }
+
+    public long getDateTime() {
+        return (Long) value;
+    }
+
+    public byte[] getBlob() {
+        return (byte[]) value;
+    }
+}
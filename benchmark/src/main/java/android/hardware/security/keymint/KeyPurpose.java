@@ -0,0 +1,11 @@
+package android.hardware.security.keymint;
+
+public @interface KeyPurpose {
+    int ENCRYPT = 0;
+    int DECRYPT = 1;
+    int SIGN = 2;
+    int VERIFY = 3;
+    int WRAP_KEY = 5;
+    int AGREE_KEY = 6;
+    int ATTEST_KEY = 7;
+}
@@ -0,0 +1,24 @@
+package android.os;
+
+public class Build {
+    public static final String BRAND = "google";
+    public static final String DEVICE = "husky";
+    public static final String PRODUCT = "husky";
+    public static final String MANUFACTURER = "Google";
+    public static final String MODEL = "Pixel 8 Pro";
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.VANILLA_ICE_CREAM;
+        public static final String SECURITY_PATCH = "2025-01-05";
+    }
+
+    public static class VERSION_CODES {
+        public static final int Q = 29;
+        public static final int R = 30;
+        public static final int S = 31;
+        public static final int S_V2 = 32;
+        public static final int TIRAMISU = 33;
+        public static final int UPSIDE_DOWN_CAKE = 34;
+        public static final int VANILLA_ICE_CREAM = 35;
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+public final class Parcel {
+    public static Parcel obtain() {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] marshall() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void recycle() {
+    }
+}
@@ -0,0 +1,8 @@
+package android.os;
+
+// Used instead of the :stub one, which throws, there are no properties on the host.
+public class SystemProperties {
+    public static String get(String key, String def) {
+        return def;
+    }
+}
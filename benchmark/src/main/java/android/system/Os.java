@@ -0,0 +1,7 @@
+package android.system;
+
+public final class Os {
+    public static StructStat stat(String path) throws ErrnoException {
+        throw new ErrnoException("stat", 38);
+    }
+}
@@ -0,0 +1,5 @@
+package android.system;
+
+public final class StructStat {
+    public int st_uid;
+}
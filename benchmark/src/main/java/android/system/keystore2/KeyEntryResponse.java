@@ -0,0 +1,5 @@
+package android.system.keystore2;
+
+public class KeyEntryResponse {
+    public KeyMetadata metadata;
+}
@@ -0,0 +1,7 @@
+package android.system.keystore2;
+
+public class KeyMetadata {
+    public KeyDescriptor key;
+    public byte[] certificate;
+    public byte[] certificateChain;
+}
@@ -0,0 +1,16 @@
+package android.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SparseIntArray {
+    private final Map<Integer, Integer> values = new HashMap<>();
+
+    public int get(int key, int valueIfKeyNotFound) {
+        return values.getOrDefault(key, valueIfKeyNotFound);
+    }
+
+    public void put(int key, int value) {
+        values.put(key, value);
+    }
+}
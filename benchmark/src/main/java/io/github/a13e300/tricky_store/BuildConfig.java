@@ -0,0 +1,6 @@
+package io.github.a13e300.tricky_store;
+
+// Host replacement of the generated BuildConfig, benchmarks measure release logging.
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
@@ -0,0 +1,19 @@
+package io.github.a13e300.tricky_store
+
+import android.content.pm.IPackageManager
+
+// Host replacement of the service Config, which loads its files, watches them and registers
+// the interceptors. Only the package manager and the default DeviceConfig the benchmarked code
+// reads are kept, the values derived from them come from the service util.kt.
+object Config {
+    @Volatile
+    private var pm: IPackageManager? = null
+
+    val devConfig = DeviceConfig()
+
+    fun setPm(pm: IPackageManager) {
+        this.pm = pm
+    }
+
+    fun getPm() = pm
+}
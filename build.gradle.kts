@@ -6,6 +6,7 @@ import java.util.concurrent.ThreadLocalRandom
 plugins {
     alias(libs.plugins.agp.app) apply false
     alias(libs.plugins.jetbrains.kotlin.android) apply false
+    alias(libs.plugins.jetbrains.kotlin.jvm) apply false
     alias(libs.plugins.android.library) apply false
 }
 
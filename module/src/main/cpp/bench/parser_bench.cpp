@@ -0,0 +1,169 @@
+// Measures the work new_ioctl adds to every BINDER_WRITE_READ: walking the read buffer and
+// deciding for each incoming transaction whether it is redirected to the stub.
+// The buffers are synthetic, the registry is the same sorted RCU snapshot the interceptor uses
+// with fake binder addresses, the libbinder refcounting around the lookup is left out.
+//
+// usage: parser_bench [seconds]
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <vector>
+
+#include "binder_parser.hpp"
+#include "rcu.hpp"
+
+namespace {
+
+struct Item {
+    uintptr_t binder = 0;
+    // sorted
+    std::vector<uint32_t> codes{};
+};
+
+struct Registry {
+    // sorted by binder
+    std::vector<Item> items;
+};
+
+RcuPtr<Registry> registry;
+
+constexpr uintptr_t STUB = 0x7000;
+
+bool needIntercept(uintptr_t binder, uint32_t code) {
+    RcuPtr<Registry>::ReadGuard r{registry};
+    auto it = std::lower_bound(r->items.begin(), r->items.end(), binder,
+                               [](const Item &i, uintptr_t b) { return i.binder < b; });
+    return it != r->items.end() && it->binder == binder &&
+           std::binary_search(it->codes.begin(), it->codes.end(), code);
+}
+
+// mirrors the visitor of new_ioctl
+struct Decide {
+    uint64_t intercepted = 0;
+
+    void operator()(binder_transaction_data &tr) {
+        if (tr.target.ptr == 0) return;
+        if (isBackdoorTransaction(tr) || needIntercept(tr.cookie, tr.code)) {
+            tr.target.ptr = STUB;
+            tr.cookie = STUB;
+            tr.code = BACKDOOR_CODE;
+            intercepted++;
+        }
+    }
+};
+
+class Stream {
+    std::vector<uint8_t> bytes;
+public:
+    size_t commands = 0;
+
+    template<typename T>
+    Stream &add(uint32_t cmd, const T &payload) {
+        auto at = bytes.size();
+        bytes.resize(at + sizeof(cmd) + sizeof(T));
+        memcpy(bytes.data() + at, &cmd, sizeof(cmd));
+        memcpy(bytes.data() + at + sizeof(cmd), &payload, sizeof(T));
+        commands++;
+        return *this;
+    }
+
+    Stream &add(uint32_t cmd) {
+        auto at = bytes.size();
+        bytes.resize(at + sizeof(cmd));
+        memcpy(bytes.data() + at, &cmd, sizeof(cmd));
+        commands++;
+        return *this;
+    }
+
+    Stream &transaction(uintptr_t binder, uint32_t code, bool secctx) {
+        binder_transaction_data tr{};
+        tr.target.ptr = binder + 8;
+        tr.cookie = binder;
+        tr.code = code;
+        tr.sender_euid = 10123;
+        if (!secctx) return add(BR_TRANSACTION, tr);
+        binder_transaction_data_secctx s{};
+        s.transaction_data = tr;
+        return add(BR_TRANSACTION_SEC_CTX, s);
+    }
+
+    const std::vector<uint8_t> &data() const { return bytes; }
+};
+
+void run(const char *name, const Stream &stream, int seconds) {
+    // the visitor rewrites intercepted transactions, every round parses a fresh copy
+    auto buffer = stream.data();
+    auto size = buffer.size();
+    Decide decide;
+    uint64_t rounds = 0;
+    bool complete = true;
+    auto deadline = std::chrono::steady_clock::now() + std::chrono::seconds(seconds);
+    auto start = std::chrono::steady_clock::now();
+    while (std::chrono::steady_clock::now() < deadline) {
+        for (int k = 0; k < 1024; k++) {
+            memcpy(buffer.data(), stream.data().data(), size);
+            complete &= forEachTransaction(reinterpret_cast<uintptr_t>(buffer.data()), size, decide);
+        }
+        rounds += 1024;
+    }
+    double ns = std::chrono::duration<double, std::nano>(std::chrono::steady_clock::now() - start).count();
+
+    // cost of restoring the buffer, included above
+    start = std::chrono::steady_clock::now();
+    for (uint64_t i = 0; i < rounds; i++) {
+        memcpy(buffer.data(), stream.data().data(), size);
+        asm volatile("" : : "r"(buffer.data()) : "memory");
+    }
+    double copy = std::chrono::duration<double, std::nano>(std::chrono::steady_clock::now() - start).count();
+
+    if (!complete) std::fprintf(stderr, "%s: incomplete buffer\n", name);
+    double perIoctl = (ns - copy) / static_cast<double>(rounds);
+    std::printf("%-10s %3zu cmds %5zu bytes: %8.2f ns/ioctl, %6.2f ns/cmd, %.2f intercepted/ioctl\n", name,
+                stream.commands, size, perIoctl, perIoctl / static_cast<double>(stream.commands),
+                static_cast<double>(decide.intercepted) / static_cast<double>(rounds));
+}
+
+}
+
+int main(int argc, char **argv) {
+    int seconds = argc > 1 ? std::atoi(argv[1]) : 2;
+
+    // a keystore2 like registry: a couple of binders, each with a few interesting codes
+    constexpr uintptr_t KEYSTORE = 0x10000, SECURITY_LEVEL = 0x20000, OTHER = 0x30000;
+    registry.update([](Registry &r) {
+        r.items.push_back(Item{KEYSTORE, {2, 4, 6}});
+        r.items.push_back(Item{SECURITY_LEVEL, {1, 2, 3}});
+        r.items.push_back(Item{SECURITY_LEVEL + 0x1000, {1, 2, 3}});
+        return true;
+    });
+
+    Stream idle;
+    idle.add(BR_NOOP).add(BR_TRANSACTION_COMPLETE);
+    run("idle", idle, seconds);
+
+    Stream miss;
+    miss.add(BR_NOOP).transaction(OTHER, 1, false);
+    run("miss", miss, seconds);
+
+    Stream hit;
+    hit.add(BR_NOOP).transaction(KEYSTORE, 2, false);
+    run("hit", hit, seconds);
+
+    Stream secctx;
+    secctx.add(BR_NOOP).transaction(SECURITY_LEVEL, 1, true);
+    run("secctx", secctx, seconds);
+
+    // a thread pool thread draining a backlog, refcount commands in between
+    Stream batch;
+    batch.add(BR_NOOP);
+    for (int i = 0; i < 16; i++) {
+        binder_ptr_cookie ref{};
+        batch.add(BR_INCREFS, ref);
+        batch.transaction(i % 4 == 0 ? KEYSTORE : OTHER + i * 0x100, static_cast<uint32_t>(i % 7), i % 2 == 1);
+    }
+    run("batch", batch, seconds);
+    return 0;
+}
@@ -0,0 +1,120 @@
+// Compares the interceptor registry lookup done for every incoming binder transaction:
+// the former shared_mutex + std::map against the RcuPtr snapshot of a sorted array.
+//
+// usage: registry_bench [readers] [seconds] [binders]
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <map>
+#include <shared_mutex>
+#include <thread>
+#include <vector>
+
+#include "rcu.hpp"
+
+namespace {
+
+struct Item {
+    const void *binder = nullptr;
+    std::vector<uint32_t> codes{};
+};
+
+class LockedRegistry {
+    std::shared_mutex lock;
+    std::map<const void *, Item> items;
+public:
+    bool lookup(const void *binder, uint32_t code) {
+        std::shared_lock g{lock};
+        auto it = items.find(binder);
+        return it != items.end() && std::binary_search(it->second.codes.begin(), it->second.codes.end(), code);
+    }
+
+    void put(const Item &item) {
+        std::unique_lock g{lock};
+        items[item.binder] = item;
+    }
+};
+
+class RcuRegistry {
+    struct Snapshot {
+        std::vector<Item> items;
+    };
+    RcuPtr<Snapshot> snapshot;
+public:
+    bool lookup(const void *binder, uint32_t code) {
+        RcuPtr<Snapshot>::ReadGuard s{snapshot};
+        auto it = std::lower_bound(s->items.begin(), s->items.end(), binder,
+                                   [](const Item &i, const void *b) { return i.binder < b; });
+        return it != s->items.end() && it->binder == binder &&
+               std::binary_search(it->codes.begin(), it->codes.end(), code);
+    }
+
+    void put(const Item &item) {
+        snapshot.update([&](Snapshot &s) {
+            auto it = std::lower_bound(s.items.begin(), s.items.end(), item.binder,
+                                       [](const Item &i, const void *b) { return i.binder < b; });
+            if (it != s.items.end() && it->binder == item.binder) *it = item;
+            else s.items.insert(it, item);
+            return true;
+        });
+    }
+};
+
+template<typename Registry>
+void run(const char *name, int readers, int seconds, int binders) {
+    Registry registry;
+    // fake binder addresses, half of the looked up ones are registered
+    std::vector<uintptr_t> addresses;
+    for (int i = 0; i < binders * 2; i++) addresses.push_back(0x10000 + i * 64);
+    for (int i = 0; i < binders; i++) {
+        registry.put(Item{reinterpret_cast<const void *>(addresses[i * 2]), {1, 2, 3, 5, 6}});
+    }
+
+    std::atomic<bool> stop{false};
+    std::atomic<uint64_t> total{0};
+    std::vector<std::thread> threads;
+    for (int t = 0; t < readers; t++) {
+        threads.emplace_back([&, t] {
+            uint64_t n = 0, hits = 0;
+            size_t i = t;
+            while (!stop.load(std::memory_order_relaxed)) {
+                for (int k = 0; k < 1024; k++) {
+                    auto b = reinterpret_cast<const void *>(addresses[i++ % addresses.size()]);
+                    hits += registry.lookup(b, static_cast<uint32_t>(i & 7));
+                }
+                n += 1024;
+            }
+            total += n;
+            if (hits == 0) std::fprintf(stderr, "no hits?\n");
+        });
+    }
+    // registrations and filter updates are rare, but they do happen while transactions flow
+    threads.emplace_back([&] {
+        uint32_t round = 0;
+        while (!stop.load(std::memory_order_relaxed)) {
+            registry.put(Item{reinterpret_cast<const void *>(addresses[(round++ % binders) * 2]), {1, 2, 3, 5, 6}});
+            std::this_thread::sleep_for(std::chrono::milliseconds(1));
+        }
+    });
+    std::this_thread::sleep_for(std::chrono::seconds(seconds));
+    stop = true;
+    for (auto &t: threads) t.join();
+
+    double ops = static_cast<double>(total.load());
+    std::printf("%-8s readers=%d binders=%d: %.1f Mops/s, %.2f ns/op per reader\n", name, readers, binders,
+                ops / seconds / 1e6, seconds * 1e9 * readers / ops);
+}
+
+}
+
+int main(int argc, char **argv) {
+    int readers = argc > 1 ? std::atoi(argv[1]) : static_cast<int>(std::max(1u, std::thread::hardware_concurrency()));
+    int seconds = argc > 2 ? std::atoi(argv[2]) : 3;
+    int binders = argc > 3 ? std::atoi(argv[3]) : 4;
+    run<LockedRegistry>("locked", readers, seconds, binders);
+    run<RcuRegistry>("rcu", readers, seconds, binders);
+    return 0;
+}
@@ -10,20 +10,29 @@
 #include "kernel/binder.h"
 
 #include <utility>
-#include <map>
-#include <shared_mutex>
+#include <algorithm>
 #include <vector>
 #include <queue>
 
 #include "logging.hpp"
 #include "lsplt.hpp"
+#include "binder_parser.hpp"
+#include "latency_stats.hpp"
+#include "rcu.hpp"
 
 using namespace android;
 
+// uids of the same app in different users share uid % AID_USER_OFFSET
+static constexpr uid_t AID_USER_OFFSET = 100000;
+
 class BinderInterceptor : public BBinder {
     enum {
         REGISTER_INTERCEPTOR = 1,
-        UNREGISTER_INTERCEPTOR = 2
+        UNREGISTER_INTERCEPTOR = 2,
+        UPDATE_CODE_FILTER = 3,
+        UPDATE_UID_FILTER = 4,
+        // 5 registered the shared memory transport, left unused
+        DUMP_STATS = 6
     };
     enum {
         PRE_TRANSACT = 1,
@@ -35,15 +44,53 @@ class BinderInterceptor : public BBinder {
         OVERRIDE_REPLY,
         OVERRIDE_DATA
     };
+    struct Filter {
+        // everything matches unless enabled
+        bool enabled = false;
+        // sorted
+        std::vector<uint32_t> values{};
+
+        bool matches(uint32_t value) const {
+            return !enabled || std::binary_search(values.begin(), values.end(), value);
+        }
+
+        status_t readFrom(const Parcel &data);
+    };
     struct InterceptItem {
+        // only compared, the registry holds a weak reference through target
+        const IBinder *binder = nullptr;
         wp<IBinder> target{};
         sp<IBinder> interceptor;
+        // codes sent to the interceptor before and after the real transaction
+        Filter preCodes{};
+        Filter postCodes{};
     };
-    using RwLock = std::shared_mutex;
-    using WriteGuard = std::unique_lock<RwLock>;
-    using ReadGuard = std::shared_lock<RwLock>;
-    RwLock lock;
-    std::map<wp<IBinder>, InterceptItem> items{};
+    struct Registry {
+        // sorted by binder
+        std::vector<InterceptItem> items{};
+        // app ids whose transactions are sent to interceptors
+        Filter appIds{};
+
+        std::vector<InterceptItem>::iterator lowerBound(const IBinder *binder) {
+            return std::lower_bound(items.begin(), items.end(), binder,
+                                    [](const InterceptItem &item, const IBinder *b) { return item.binder < b; });
+        }
+
+        InterceptItem *find(const IBinder *binder) {
+            auto it = lowerBound(binder);
+            return it != items.end() && it->binder == binder ? &*it : nullptr;
+        }
+
+        const InterceptItem *find(const IBinder *binder) const {
+            return const_cast<Registry *>(this)->find(binder);
+        }
+    };
+    // looked up for every incoming transaction of the process, changed only on registration
+    RcuPtr<Registry> registry;
+    // time the hook adds to intercepted transactions
+    LatencyStats stats;
+
+    static status_t readCodeFilters(const Parcel &data, InterceptItem &item);
 public:
     status_t onTransact(uint32_t code, const android::Parcel &data, android::Parcel *reply,
                         uint32_t flags) override;
@@ -51,7 +98,7 @@ public:
     bool handleIntercept(sp<BBinder> target, uint32_t code, const Parcel &data, Parcel *reply,
                          uint32_t flags, status_t &result);
 
-    bool needIntercept(const wp<BBinder>& target);
+    bool needIntercept(const BBinder *target, uint32_t code, uid_t uid);
 };
 
 static sp<BinderInterceptor> gBinderInterceptor = nullptr;
@@ -69,7 +116,7 @@ class BinderStub : public BBinder {
         if (!ttis.empty()) {
             auto tti = ttis.front();
             ttis.pop();
-            if (tti.target == nullptr && tti.code == 0xdeadbeef && reply) {
+            if (tti.target == nullptr && tti.code == BACKDOOR_CODE && reply) {
                 LOGD("backdoor requested!");
                 reply->writeStrongBinder(gBinderInterceptor);
                 return OK;
@@ -107,81 +154,93 @@ int new_ioctl(int fd, int request, ...) {
     // TODO: check fd
     if (result >= 0 && request == BINDER_WRITE_READ) {
         auto &bwr = *(struct binder_write_read*) arg;
-        LOGD("read buffer %p size %zu consumed %zu", bwr.read_buffer, bwr.read_size,
-             bwr.read_consumed);
+        LOGD("read buffer %#llx size %llu consumed %llu", static_cast<unsigned long long>(bwr.read_buffer),
+             static_cast<unsigned long long>(bwr.read_size), static_cast<unsigned long long>(bwr.read_consumed));
         if (bwr.read_buffer != 0 && bwr.read_size != 0 && bwr.read_consumed > sizeof(int32_t)) {
-            auto ptr = bwr.read_buffer;
-            auto consumed = bwr.read_consumed;
-            while (consumed > 0) {
-                consumed -= sizeof(uint32_t);
-                if (consumed < 0) {
-                    LOGE("consumed < 0");
-                    break;
-                }
-                auto cmd = *(uint32_t *) ptr;
-                ptr += sizeof(uint32_t);
-                auto sz = _IOC_SIZE(cmd);
-                LOGD("ioctl cmd %d sz %d", cmd, sz);
-                consumed -= sz;
-                if (consumed < 0) {
-                    LOGE("consumed < 0");
-                    break;
-                }
-                if (cmd == BR_TRANSACTION_SEC_CTX || cmd == BR_TRANSACTION) {
-                    binder_transaction_data_secctx *tr_secctx = nullptr;
-                    binder_transaction_data *tr = nullptr;
-                    if (cmd == BR_TRANSACTION_SEC_CTX) {
-                        LOGD("cmd is BR_TRANSACTION_SEC_CTX");
-                        tr_secctx = (binder_transaction_data_secctx *) ptr;
-                        tr = &tr_secctx->transaction_data;
-                    } else {
-                        LOGD("cmd is BR_TRANSACTION");
-                        tr = (binder_transaction_data *) ptr;
-                    }
-
-                    if (tr != nullptr) {
-                        auto wt = tr->target.ptr;
-                        if (wt != 0) {
-                            bool need_intercept = false;
-                            thread_transaction_info tti{};
-                            if (tr->code == 0xdeadbeef && tr->sender_euid == 0) {
-                                tti.code = 0xdeadbeef;
-                                tti.target = nullptr;
-                                need_intercept = true;
-                            } else if (reinterpret_cast<RefBase::weakref_type *>(wt)->attemptIncStrong(
-                                    nullptr)) {
-                                auto b = (BBinder *) tr->cookie;
-                                auto wb = wp<BBinder>::fromExisting(b);
-                                if (gBinderInterceptor->needIntercept(wb)) {
-                                    tti.code = tr->code;
-                                    tti.target = wb;
-                                    need_intercept = true;
-                                    LOGD("intercept code=%d target=%p", tr->code, b);
-                                }
-                                b->decStrong(nullptr);
-                            }
-                            if (need_intercept) {
-                                LOGD("add intercept item!");
-                                tr->target.ptr = (uintptr_t) gBinderStub->getWeakRefs();
-                                tr->cookie = (uintptr_t) gBinderStub.get();
-                                tr->code = 0xdeadbeef;
-                                ttis.push(tti);
-                            }
-                        }
-                    } else {
-                        LOGE("no transaction data found!");
+            auto complete = forEachTransaction(bwr.read_buffer, bwr.read_consumed, [](binder_transaction_data &tr) {
+                auto wt = tr.target.ptr;
+                if (wt == 0) return;
+                bool need_intercept = false;
+                thread_transaction_info tti{};
+                if (isBackdoorTransaction(tr)) {
+                    tti.code = BACKDOOR_CODE;
+                    tti.target = nullptr;
+                    need_intercept = true;
+                } else if (reinterpret_cast<RefBase::weakref_type *>(wt)->attemptIncStrong(nullptr)) {
+                    auto b = (BBinder *) tr.cookie;
+                    if (gBinderInterceptor->needIntercept(b, tr.code, tr.sender_euid)) {
+                        tti.code = tr.code;
+                        tti.target = wp<BBinder>::fromExisting(b);
+                        need_intercept = true;
+                        LOGD("intercept code=%d target=%p", tr.code, b);
                     }
+                    b->decStrong(nullptr);
                 }
-                ptr += sz;
+                if (need_intercept) {
+                    tr.target.ptr = (uintptr_t) gBinderStub->getWeakRefs();
+                    tr.cookie = (uintptr_t) gBinderStub.get();
+                    tr.code = BACKDOOR_CODE;
+                    ttis.push(tti);
+                }
+            });
+            if (!complete) {
+                LOGE("read buffer ends inside a command, consumed %llu",
+                     static_cast<unsigned long long>(bwr.read_consumed));
             }
         }
     }
     return result;
 }
 
-bool BinderInterceptor::needIntercept(const wp<BBinder> &target) {
-    ReadGuard g{lock};
-    return items.find(target) != items.end();
+bool BinderInterceptor::needIntercept(const BBinder *target, uint32_t code, uid_t uid) {
+    RcuPtr<Registry>::ReadGuard r{registry};
+    auto item = r->find(target);
+    if (item == nullptr) return false;
+    if (!r->appIds.matches(uid % AID_USER_OFFSET)) {
+        return false;
+    }
+    return item->preCodes.matches(code) || item->postCodes.matches(code);
+}
+
+// a negative count disables the filter
+status_t BinderInterceptor::Filter::readFrom(const Parcel &data) {
+    int32_t count;
+    if (data.readInt32(&count) != OK) {
+        return BAD_VALUE;
+    }
+    values.clear();
+    if (count < 0) {
+        enabled = false;
+        return OK;
+    }
+    if (static_cast<size_t>(count) > data.dataAvail() / sizeof(uint32_t)) {
+        return BAD_VALUE;
+    }
+    values.reserve(count);
+    for (int32_t i = 0; i < count; i++) {
+        uint32_t value;
+        if (data.readUint32(&value) != OK) {
+            return BAD_VALUE;
+        }
+        values.push_back(value);
+    }
+    std::sort(values.begin(), values.end());
+    values.erase(std::unique(values.begin(), values.end()), values.end());
+    enabled = true;
+    return OK;
+}
+
+// pre and post code filters, interceptors registered without them get every code in both phases
+status_t BinderInterceptor::readCodeFilters(const Parcel &data, InterceptItem &item) {
+    if (data.dataAvail() == 0) {
+        item.preCodes = {};
+        item.postCodes = {};
+        return OK;
+    }
+    if (item.preCodes.readFrom(data) != OK || item.postCodes.readFrom(data) != OK) {
+        return BAD_VALUE;
+    }
+    return OK;
 }
 
 status_t
@@ -198,18 +257,24 @@ BinderInterceptor::onTransact(uint32_t code, const android::Parcel &data, androi
         if (data.readStrongBinder(&interceptor) != OK) {
             return BAD_VALUE;
         }
-        {
-            WriteGuard wg{lock};
-            wp<IBinder> t = target;
-            auto it = items.lower_bound(t);
-            if (it == items.end() || it->first != t) {
-                it = items.emplace_hint(it, t, InterceptItem{});
-                it->second.target = t;
+        InterceptItem filters{};
+        if (readCodeFilters(data, filters) != OK) {
+            return BAD_VALUE;
+        }
+        registry.update([&](Registry &r) {
+            auto it = r.lowerBound(target.get());
+            if (it == r.items.end() || it->binder != target.get()) {
+                it = r.items.emplace(it);
+                it->binder = target.get();
+                it->target = target;
             }
             // TODO: send callback to old interceptor
-            it->second.interceptor = interceptor;
-            return OK;
-        }
+            it->interceptor = interceptor;
+            it->preCodes = std::move(filters.preCodes);
+            it->postCodes = std::move(filters.postCodes);
+            return true;
+        });
+        return OK;
     } else if (code == UNREGISTER_INTERCEPTOR) {
         sp<IBinder> target, interceptor;
         if (data.readStrongBinder(&target) != OK) {
@@ -221,19 +286,73 @@ BinderInterceptor::onTransact(uint32_t code, const android::Parcel &data, androi
         if (data.readStrongBinder(&interceptor) != OK) {
             return BAD_VALUE;
         }
-        {
-            WriteGuard wg{lock};
-            wp<IBinder> t = target;
-            auto it = items.find(t);
-            if (it != items.end()) {
-                if (it->second.interceptor != interceptor) {
-                    return BAD_VALUE;
-                }
-                items.erase(it);
-                return OK;
+        bool removed = registry.update([&](Registry &r) {
+            auto item = r.find(target.get());
+            if (item == nullptr || item->interceptor != interceptor) {
+                return false;
+            }
+            r.items.erase(r.items.begin() + (item - r.items.data()));
+            return true;
+        });
+        return removed ? OK : BAD_VALUE;
+    } else if (code == UPDATE_CODE_FILTER) {
+        sp<IBinder> target, interceptor;
+        if (data.readStrongBinder(&target) != OK) {
+            return BAD_VALUE;
+        }
+        if (!target->localBinder()) {
+            return BAD_VALUE;
+        }
+        if (data.readStrongBinder(&interceptor) != OK) {
+            return BAD_VALUE;
+        }
+        InterceptItem filters{};
+        if (readCodeFilters(data, filters) != OK) {
+            return BAD_VALUE;
+        }
+        bool updated = registry.update([&](Registry &r) {
+            auto item = r.find(target.get());
+            if (item == nullptr || item->interceptor != interceptor) {
+                return false;
             }
+            item->preCodes = std::move(filters.preCodes);
+            item->postCodes = std::move(filters.postCodes);
+            return true;
+        });
+        return updated ? OK : BAD_VALUE;
+    } else if (code == UPDATE_UID_FILTER) {
+        Filter ids{};
+        if (ids.readFrom(data) != OK) {
+            return BAD_VALUE;
+        }
+        LOGI("uid filter: %zu app ids (enabled=%d)", ids.values.size(), ids.enabled);
+        registry.update([&](Registry &r) {
+            r.appIds = std::move(ids);
+            return true;
+        });
+        return OK;
+    } else if (code == DUMP_STATS) {
+        if (reply == nullptr) {
             return BAD_VALUE;
         }
+        auto snapshot = stats.snapshot();
+        RcuPtr<Registry>::ReadGuard r{registry};
+        // the daemon only knows binders by their interceptor, others are left out
+        std::erase_if(snapshot, [&](auto &e) { return r->find(static_cast<const IBinder *>(e.first.binder)) == nullptr; });
+        reply->writeInt32(static_cast<int32_t>(snapshot.size()));
+        for (auto &[key, h]: snapshot) {
+            reply->writeStrongBinder(r->find(static_cast<const IBinder *>(key.binder))->interceptor);
+            reply->writeUint32(key.code);
+            reply->writeInt32(key.outcome);
+            reply->writeInt32(static_cast<int32_t>(h.buckets.size()));
+            for (auto [bucket, count]: h.buckets) {
+                reply->writeInt32(bucket);
+                reply->writeUint64(count);
+            }
+            reply->writeUint64(h.sum);
+            reply->writeUint64(h.max);
+        }
+        return OK;
     }
     return UNKNOWN_TRANSACTION;
 }
@@ -243,29 +362,37 @@ BinderInterceptor::handleIntercept(sp<BBinder> target, uint32_t code, const Parc
                                    uint32_t flags, status_t &result) {
 #define CHECK(expr) ({ auto __result = (expr); if (__result != OK) { LOGE(#expr " = %d", __result); return false; } })
     sp<IBinder> interceptor;
+    bool pre, post;
     {
-        ReadGuard rg{lock};
-        auto it = items.find(target);
-        if (it == items.end()) {
+        RcuPtr<Registry>::ReadGuard r{registry};
+        auto item = r->find(target.get());
+        if (item == nullptr) {
             LOGE("no intercept item found!");
             return false;
         }
-        interceptor = it->second.interceptor;
+        interceptor = item->interceptor;
+        pre = item->preCodes.matches(code);
+        post = item->postCodes.matches(code);
     }
     LOGD("intercept on binder %p code %d flags %d (reply=%s)", target.get(), code, flags,
          reply ? "true" : "false");
+    // by the outcome of the pre transaction, the original transaction is not counted
+    LatencyStats::Timer timer{stats, {target.get(), code, CONTINUE}};
     Parcel tmpData, tmpReply, realData;
-    CHECK(tmpData.writeStrongBinder(target));
-    CHECK(tmpData.writeUint32(code));
-    CHECK(tmpData.writeUint32(flags));
-    CHECK(tmpData.writeInt32(IPCThreadState::self()->getCallingUid()));
-    CHECK(tmpData.writeInt32(IPCThreadState::self()->getCallingPid()));
-    CHECK(tmpData.writeUint64(data.dataSize()));
-    CHECK(tmpData.appendFrom(&data, 0, data.dataSize()));
-    CHECK(interceptor->transact(PRE_TRANSACT, tmpData, &tmpReply));
-    int32_t preType;
-    CHECK(tmpReply.readInt32(&preType));
-    LOGD("pre transact type %d", preType);
+    int32_t preType = CONTINUE;
+    if (pre) {
+        CHECK(tmpData.writeStrongBinder(target));
+        CHECK(tmpData.writeUint32(code));
+        CHECK(tmpData.writeUint32(flags));
+        CHECK(tmpData.writeInt32(IPCThreadState::self()->getCallingUid()));
+        CHECK(tmpData.writeInt32(IPCThreadState::self()->getCallingPid()));
+        CHECK(tmpData.writeUint64(data.dataSize()));
+        CHECK(tmpData.appendFrom(&data, 0, data.dataSize()));
+        CHECK(interceptor->transact(PRE_TRANSACT, tmpData, &tmpReply));
+        CHECK(tmpReply.readInt32(&preType));
+        LOGD("pre transact type %d", preType);
+        timer.key.outcome = preType;
+    }
     if (preType == SKIP) {
         return false;
     } else if (preType == OVERRIDE_REPLY) {
@@ -275,13 +402,19 @@ BinderInterceptor::handleIntercept(sp<BBinder> target, uint32_t code, const Parc
             CHECK(reply->appendFrom(&tmpReply, tmpReply.dataPosition(), sz));
         }
         return true;
+    } else if (!post && preType != OVERRIDE_DATA) {
+        // nothing to do after the transaction, let the caller run it on the original data
+        return false;
     } else if (preType == OVERRIDE_DATA) {
         size_t sz = tmpReply.readUint64();
         CHECK(realData.appendFrom(&tmpReply, tmpReply.dataPosition(), sz));
     } else {
         CHECK(realData.appendFrom(&data, 0, data.dataSize()));
     }
-    result = target->transact(code, realData, reply, flags);
+    result = timer.exclude([&] { return target->transact(code, realData, reply, flags); });
+    if (!post) {
+        return true;
+    }
 
     tmpData.freeData();
     tmpReply.freeData();
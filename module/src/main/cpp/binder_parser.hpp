@@ -0,0 +1,37 @@
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+
+#include "kernel/binder.h"
+
+// Code of transactions asking for the interceptor binder, answered by the stub instead of the target.
+static constexpr uint32_t BACKDOOR_CODE = 0xdeadbeef;
+
+// Only root may ask for the backdoor.
+inline bool isBackdoorTransaction(const binder_transaction_data &tr) {
+    return tr.code == BACKDOOR_CODE && tr.sender_euid == 0;
+}
+
+// Walks the commands the driver returned in the read buffer of a BINDER_WRITE_READ and calls
+// visit on every incoming transaction, which may rewrite it in place.
+// Kept free of libbinder so it can be benchmarked on the host, see bench/parser_bench.cpp.
+// Returns false if the buffer ends inside a command, the commands before it are still visited.
+template<typename Visitor>
+bool forEachTransaction(uintptr_t buffer, size_t consumed, Visitor &&visit) {
+    auto ptr = buffer;
+    auto end = buffer + consumed;
+    while (end - ptr >= sizeof(uint32_t)) {
+        auto cmd = *reinterpret_cast<const uint32_t *>(ptr);
+        ptr += sizeof(uint32_t);
+        size_t size = _IOC_SIZE(cmd);
+        if (size > end - ptr) return false;
+        if (cmd == BR_TRANSACTION_SEC_CTX) {
+            visit(reinterpret_cast<binder_transaction_data_secctx *>(ptr)->transaction_data);
+        } else if (cmd == BR_TRANSACTION) {
+            visit(*reinterpret_cast<binder_transaction_data *>(ptr));
+        }
+        ptr += size;
+    }
+    return ptr == end;
+}
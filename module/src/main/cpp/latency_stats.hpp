@@ -0,0 +1,120 @@
+#pragma once
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <utility>
+#include <vector>
+
+// Log-linear histogram of nanoseconds with 8 sub-buckets per power of two, values are off by at
+// most 12.5%. The bucket layout is shared with Stats.Histogram of the daemon, which merges it.
+class LatencyHistogram {
+public:
+    static constexpr int SUB_BUCKET_BITS = 3;
+    static constexpr int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // about 2 minutes, slower transactions land in the last bucket
+    static constexpr int MAX_MAGNITUDE = 36;
+    static constexpr int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    static int bucketOf(uint64_t nanos) {
+        if (nanos < SUB_BUCKETS) return static_cast<int>(nanos);
+        int magnitude = 63 - __builtin_clzll(nanos);
+        if (magnitude > MAX_MAGNITUDE) return BUCKETS - 1;
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS +
+               static_cast<int>((nanos >> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    void record(uint64_t nanos) {
+        buckets_[bucketOf(nanos)].fetch_add(1, std::memory_order_relaxed);
+        sum_.fetch_add(nanos, std::memory_order_relaxed);
+        auto max = max_.load(std::memory_order_relaxed);
+        while (nanos > max && !max_.compare_exchange_weak(max, nanos, std::memory_order_relaxed)) {}
+    }
+
+    struct Snapshot {
+        // non-empty buckets only
+        std::vector<std::pair<int32_t, uint64_t>> buckets;
+        uint64_t sum;
+        uint64_t max;
+    };
+
+    Snapshot snapshot() const {
+        Snapshot s{{}, sum_.load(std::memory_order_relaxed), max_.load(std::memory_order_relaxed)};
+        for (int i = 0; i < BUCKETS; i++) {
+            if (auto n = buckets_[i].load(std::memory_order_relaxed); n != 0) s.buckets.emplace_back(i, n);
+        }
+        return s;
+    }
+
+private:
+    std::atomic<uint64_t> buckets_[BUCKETS]{};
+    std::atomic<uint64_t> sum_{0};
+    std::atomic<uint64_t> max_{0};
+};
+
+// Histograms per intercepted binder, transaction code and outcome. Only intercepted transactions
+// are recorded, those already pay for a round trip to the daemon, so a short lock is fine here.
+class LatencyStats {
+public:
+    struct Key {
+        const void *binder;
+        uint32_t code;
+        int32_t outcome;
+
+        auto operator<=>(const Key &) const = default;
+    };
+
+    void record(const Key &key, std::chrono::nanoseconds elapsed) {
+        LatencyHistogram *histogram;
+        {
+            std::lock_guard g{lock_};
+            auto &h = histograms_[key];
+            if (!h) h = std::make_unique<LatencyHistogram>();
+            histogram = h.get();
+        }
+        histogram->record(elapsed.count() < 0 ? 0 : static_cast<uint64_t>(elapsed.count()));
+    }
+
+    std::vector<std::pair<Key, LatencyHistogram::Snapshot>> snapshot() {
+        std::lock_guard g{lock_};
+        std::vector<std::pair<Key, LatencyHistogram::Snapshot>> result;
+        result.reserve(histograms_.size());
+        for (auto &[key, h]: histograms_) result.emplace_back(key, h->snapshot());
+        return result;
+    }
+
+    // records the time until it goes out of scope, excluded time not counted
+    class Timer {
+        LatencyStats &stats_;
+        std::chrono::steady_clock::time_point start_ = std::chrono::steady_clock::now();
+        std::chrono::nanoseconds excluded_{0};
+    public:
+        Key key;
+
+        Timer(LatencyStats &stats, const Key &key) : stats_(stats), key(key) {}
+
+        ~Timer() {
+            stats_.record(key, std::chrono::steady_clock::now() - start_ - excluded_);
+        }
+
+        Timer(const Timer &) = delete;
+
+        Timer &operator=(const Timer &) = delete;
+
+        template<typename F>
+        auto exclude(F &&f) {
+            auto start = std::chrono::steady_clock::now();
+            auto result = f();
+            excluded_ += std::chrono::steady_clock::now() - start;
+            return result;
+        }
+    };
+
+private:
+    std::mutex lock_;
+    // histograms are never removed, so pointers to them stay valid outside the lock
+    std::map<Key, std::unique_ptr<LatencyHistogram>> histograms_;
+};
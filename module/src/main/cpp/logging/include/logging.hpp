@@ -9,17 +9,24 @@
 # define LOG_TAG "TrickyStore"
 #endif
 
-#ifndef NDEBUG
-#define LOGD(...)  logging::log(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
-#define LOGV(...)  logging::log(ANDROID_LOG_VERBOSE, LOG_TAG, __VA_ARGS__)
-#else
-#define LOGD(...) (void)0
-#define LOGV(...) (void)0
+// lowest priority compiled in, release builds drop LOGD and LOGV together with the formatting
+// of their arguments, see CMakeLists.txt
+#ifndef LOG_MIN_LEVEL
+# ifdef NDEBUG
+#  define LOG_MIN_LEVEL ANDROID_LOG_INFO
+# else
+#  define LOG_MIN_LEVEL ANDROID_LOG_VERBOSE
+# endif
 #endif
-#define LOGI(...)  logging::log(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
-#define LOGW(...)  logging::log(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
-#define LOGE(...)  logging::log(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
-#define LOGF(...)  logging::log(ANDROID_LOG_FATAL, LOG_TAG, __VA_ARGS__)
+
+#define LOG_AT(prio, ...) ((prio) >= LOG_MIN_LEVEL ? logging::log(prio, LOG_TAG, __VA_ARGS__) : (void) 0)
+
+#define LOGD(...)  LOG_AT(ANDROID_LOG_DEBUG, __VA_ARGS__)
+#define LOGV(...)  LOG_AT(ANDROID_LOG_VERBOSE, __VA_ARGS__)
+#define LOGI(...)  LOG_AT(ANDROID_LOG_INFO, __VA_ARGS__)
+#define LOGW(...)  LOG_AT(ANDROID_LOG_WARN, __VA_ARGS__)
+#define LOGE(...)  LOG_AT(ANDROID_LOG_ERROR, __VA_ARGS__)
+#define LOGF(...)  LOG_AT(ANDROID_LOG_FATAL, __VA_ARGS__)
 #define PLOGE(fmt, args...) LOGE(fmt " failed with %d: %s", ##args, errno, strerror(errno))
 
 namespace logging {
@@ -0,0 +1,74 @@
+#pragma once
+
+#include <atomic>
+#include <cstdint>
+#include <memory>
+#include <mutex>
+#include <thread>
+
+// Pointer to an immutable snapshot. Readers never block: they bump one of two
+// counters and load the pointer. Writers copy the snapshot, modify the copy,
+// publish it, and free the old one after every reader that could see it left.
+template<typename T>
+class RcuPtr {
+    std::atomic<const T *> current_;
+    mutable std::atomic<uint32_t> epoch_{0};
+    mutable std::atomic<uint32_t> readers_[2]{};
+    std::mutex writer_;
+
+    std::atomic<uint32_t> &enter() const {
+        auto &counter = readers_[epoch_.load() & 1];
+        counter.fetch_add(1);
+        return counter;
+    }
+
+    // wait until both counters were seen drained after the new snapshot was published,
+    // flipping the epoch first so readers coming after the flip don't keep us waiting
+    void synchronize() {
+        for (int i = 0; i < 2; i++) {
+            auto old = epoch_.fetch_add(1);
+            while (readers_[old & 1].load() != 0) {
+                std::this_thread::yield();
+            }
+        }
+    }
+
+public:
+    class ReadGuard {
+        std::atomic<uint32_t> &counter_;
+        const T *ptr_;
+    public:
+        explicit ReadGuard(const RcuPtr &rcu) : counter_(rcu.enter()), ptr_(rcu.current_.load()) {}
+
+        ~ReadGuard() { counter_.fetch_sub(1); }
+
+        ReadGuard(const ReadGuard &) = delete;
+
+        ReadGuard &operator=(const ReadGuard &) = delete;
+
+        const T *operator->() const { return ptr_; }
+
+        const T &operator*() const { return *ptr_; }
+    };
+
+    RcuPtr() : current_(new T{}) {}
+
+    ~RcuPtr() { delete current_.load(); }
+
+    RcuPtr(const RcuPtr &) = delete;
+
+    RcuPtr &operator=(const RcuPtr &) = delete;
+
+    // f modifies a copy of the current snapshot and returns whether to publish it
+    template<typename F>
+    bool update(F &&f) {
+        std::lock_guard g{writer_};
+        auto old = current_.load();
+        auto next = std::make_unique<T>(*old);
+        if (!f(*next)) return false;
+        current_.store(next.release());
+        synchronize();
+        delete old;
+        return true;
+    }
+};
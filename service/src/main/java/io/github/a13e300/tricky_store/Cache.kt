@@ -1,60 +1,291 @@
 package io.github.a13e300.tricky_store
 
+import android.os.SystemClock
+import android.system.Os
 import android.system.keystore2.KeyEntryResponse
 import java.security.KeyPair
 import java.security.PrivateKey
 import java.security.cert.Certificate
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 object Cache {
     // imported key section
     data class Owner(val uid: Int, val pid: Int)
 
-    // These imported keys will be naturally dropped when app exits and pid changes
-    private val importedKeys = ConcurrentHashMap<Owner, Pair<Pair<PrivateKey, () -> Unit>, Certificate?>>()
+    private const val IMPORTED_KEY_TTL_MS = 5 * 60 * 1000L
+    private const val SWEEP_INTERVAL_MS = 60 * 1000L
+    private const val MAX_PENDING_IMPORTS_PER_UID = 4
+
+    private class ImportedKey(val key: Pair<Pair<PrivateKey, () -> Unit>, Certificate?>) {
+        val stagedAt = SystemClock.elapsedRealtime()
+    }
+
+    // Imported keys are staged until the app finishes the import. Entries of apps that never
+    // do (killed, crashed) are dropped after IMPORTED_KEY_TTL_MS or once the pid is gone.
+    private val importedKeys = ConcurrentHashMap<Owner, ImportedKey>()
+
+    private val sweeper = lazy {
+        Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "ImportedKeySweeper").apply { isDaemon = true }
+        }.apply {
+            scheduleWithFixedDelay(::sweepImportedKeys, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun isAlive(owner: Owner) = runCatching {
+        // the pid may have been reused by another app
+        Os.stat("/proc/${owner.pid}").st_uid == owner.uid
+    }.getOrDefault(false)
+
+    private fun sweepImportedKeys() {
+        val now = SystemClock.elapsedRealtime()
+        importedKeys.forEach { (owner, imported) ->
+            if (now - imported.stagedAt > IMPORTED_KEY_TTL_MS || !isAlive(owner)) {
+                if (importedKeys.remove(owner, imported)) Logger.d { "dropped staged imported key of $owner" }
+            }
+        }
+    }
 
     fun getImportedKey(uid: Int, pid: Int): Pair<Pair<PrivateKey, () -> Unit>, Certificate?>? =
-        importedKeys[Owner(uid, pid)]
+        importedKeys[Owner(uid, pid)]?.key
 
     fun preImportedKey(uid: Int, pid: Int, privateKey: PrivateKey, onFinish: () -> Unit) {
-        importedKeys[Owner(uid, pid)] = Pair(Pair(privateKey, onFinish), null) as Pair<Pair<PrivateKey, () -> Unit>, Certificate?>
+        val pending = importedKeys.entries.filter { it.key.uid == uid && it.key.pid != pid }
+        if (pending.size >= MAX_PENDING_IMPORTS_PER_UID) {
+            pending.sortedBy { it.value.stagedAt }.take(pending.size - MAX_PENDING_IMPORTS_PER_UID + 1).forEach {
+                importedKeys.remove(it.key, it.value)
+            }
+            Logger.d { "too many staged imported keys of $uid, dropped the oldest" }
+        }
+        importedKeys[Owner(uid, pid)] = ImportedKey(Pair(Pair(privateKey, onFinish), null))
+        sweeper.value
     }
 
-    fun deleteImportedKey(uid: Int, pid: Int) = importedKeys.remove(Owner(uid, pid))
+    fun deleteImportedKey(uid: Int, pid: Int) = importedKeys.remove(Owner(uid, pid))?.key
 
     fun finalizedImportedKey(uid: Int, pid: Int, cert: Certificate) {
-        val pair = importedKeys[Owner(uid, pid)] ?: return
-        importedKeys[Owner(uid, pid)] = Pair(pair.first, cert)
+        val imported = importedKeys[Owner(uid, pid)] ?: return
+        importedKeys[Owner(uid, pid)] = ImportedKey(Pair(imported.key.first, cert))
         // generate imported key
-        pair.first.second.invoke()
+        imported.key.first.second.invoke()
     }
 
     // generated key section
     data class Key(val uid: Int, val alias: String)
     data class Info(val key: Key, val keyPair: KeyPair, val chain: List<Certificate>, val response: KeyEntryResponse)
 
-    private val keys = ConcurrentHashMap<Key, Info>()
+    private data class Nspace(val uid: Int, val nspace: Long)
+
+    private class Entry(val key: Key, val info: Info, val bytes: Long)
+
+    private val keys = ConcurrentHashMap<Key, Entry>()
+    // the entries of keys in access order, overall and per uid, the eldest is evicted first.
+    // Guarded by keysLock
+    private val lru = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+    private val lruByUid = HashMap<Int, LinkedHashMap<Key, Entry>>()
+    // indexes over keys, only changed while holding keysLock. Values are replaced, never mutated,
+    // so readers don't need the lock
+    private val keysByUid = ConcurrentHashMap<Int, Set<Key>>()
+    private val keysByNspace = ConcurrentHashMap<Nspace, List<Entry>>()
+    private val keysLock = Any()
+
+    // limits of the generated keys, least recently used keys are evicted first
+    @Volatile
+    private var maxEntries = 1024
+    @Volatile
+    private var maxBytes = 8L shl 20
+    @Volatile
+    private var maxEntriesPerUid = 128
+
+    // guarded by keysLock
+    private var residentBytes = 0L
+    private var evictions = 0L
+
+    /**
+     * Persistent copy of the generated keys. Keys of a uid are loaded on its first access,
+     * keys evicted from memory are read back from it.
+     */
+    interface Storage {
+        fun load(uid: Int): List<Info>
+        fun load(uid: Int, alias: String): Info?
+        fun loadByNspace(uid: Int, nspace: Long): List<Info>
+        fun put(info: Info)
+        fun delete(key: Key)
+        fun deleteAll(uid: Int)
+        // uids with persisted keys
+        fun uids(): Collection<Int>
+    }
+
+    @Volatile
+    var storage: Storage? = null
+    private val loadedUids = ConcurrentHashMap<Int, Boolean>()
+
+    private fun ensureLoaded(uid: Int) {
+        val storage = storage ?: return
+        if (loadedUids.containsKey(uid)) return
+        // other callers of the uid wait for the load
+        loadedUids.computeIfAbsent(uid) {
+            runCatching {
+                storage.load(uid).forEach { putKey(it.key, it, false) }
+            }.onFailure {
+                Logger.e("failed to load keys of $uid", it)
+            }
+            true
+        }
+    }
+
+    private val Info.nspace: Nspace?
+        get() = response.metadata?.key?.nspace?.let { Nspace(key.uid, it) }
+
+    // rough heap cost of a key: encoded key pair and chain plus the copies kept in the response
+    private fun Info.estimateBytes(): Long {
+        var bytes = 512L
+        bytes += keyPair.private.encoded?.size ?: 0
+        bytes += keyPair.public.encoded?.size ?: 0
+        chain.forEach { bytes += it.encoded.size }
+        response.metadata?.let {
+            bytes += it.certificate?.size ?: 0
+            bytes += it.certificateChain?.size ?: 0
+        }
+        return bytes
+    }
+
+    fun configure(maxEntries: Int, maxBytes: Long, maxEntriesPerUid: Int) {
+        synchronized(keysLock) {
+            this.maxEntries = maxEntries
+            this.maxBytes = maxBytes
+            this.maxEntriesPerUid = maxEntriesPerUid
+            trim(null)
+        }
+    }
 
     fun putKey(uid: Int, alias: String, keyPair: KeyPair, chain: List<Certificate>, response: KeyEntryResponse) {
-        keys[Key(uid, alias)] = Info(Key(uid, alias), keyPair, chain, response)
+        putKey(Key(uid, alias), Info(Key(uid, alias), keyPair, chain, response))
     }
 
     fun putKey(key: Key, info: Info) {
-        keys[key] = info
+        ensureLoaded(key.uid)
+        putKey(key, info, true)
+    }
+
+    private fun putKey(key: Key, info: Info, persist: Boolean) {
+        val entry = Entry(key, info, info.estimateBytes())
+        synchronized(keysLock) {
+            keys.put(key, entry)?.let { unindex(key, it) }
+            lru[key] = entry
+            lruByUid.getOrPut(key.uid) { LinkedHashMap(16, 0.75f, true) }[key] = entry
+            residentBytes += entry.bytes
+            keysByUid.compute(key.uid) { _, set -> set.orEmpty() + key }
+            info.nspace?.let { keysByNspace.compute(it) { _, list -> list.orEmpty() + entry } }
+            trim(key.uid)
+        }
+        if (persist) storage?.put(info)
     }
 
-    fun getInfoByNspace(callingUid: Int, nspace: Long): List<Info> = keys.values.filter { it.key.uid == callingUid && it.response.metadata?.key?.nspace == nspace }
+    private fun unindex(key: Key, entry: Entry) {
+        residentBytes -= entry.bytes
+        lru.remove(key, entry)
+        lruByUid[key.uid]?.let { if (it.remove(key, entry) && it.isEmpty()) lruByUid.remove(key.uid) }
+        keysByUid.computeIfPresent(key.uid) { _, set -> (set - key).ifEmpty { null } }
+        entry.info.nspace?.let { keysByNspace.computeIfPresent(it) { _, list -> list.filter { e -> e !== entry }.ifEmpty { null } } }
+    }
 
-    fun getKeyResponse(uid: Int, alias: String): KeyEntryResponse? = keys[Key(uid, alias)]?.response
+    // evicts keys of the uid over its quota first, so a single app only pushes out its own keys
+    private fun trim(uid: Int?) {
+        var evicted = false
+        val uids = if (uid != null) listOf(uid) else lruByUid.keys.toList()
+        for (u in uids) {
+            val owned = lruByUid[u] ?: continue
+            val excess = owned.size - maxEntriesPerUid
+            if (excess > 0) {
+                owned.values.take(excess).forEach { evict(it) }
+                evicted = true
+            }
+        }
+        while ((keys.size > maxEntries || residentBytes > maxBytes) && lru.isNotEmpty()) {
+            evict(lru.values.first())
+            evicted = true
+        }
+        if (evicted) Logger.d { "key cache: ${stats()}" }
+    }
 
-    fun getKeyPairs(uid: Int, alias: String): Pair<KeyPair, List<Certificate>>? = keys[Key(uid, alias)]?.let { Pair(it.keyPair, it.chain) }
+    // caller holds keysLock
+    private fun evict(entry: Entry) {
+        keys.remove(entry.key, entry)
+        unindex(entry.key, entry)
+        evictions++
+        Logger.d { "evicted key uid=${entry.key.uid} alias=${entry.key.alias}" }
+    }
+
+    private fun touch(entry: Entry): Info {
+        synchronized(keysLock) {
+            // a get moves the key to the end of an access ordered map
+            lru[entry.key]
+            lruByUid[entry.key.uid]?.get(entry.key)
+        }
+        return entry.info
+    }
+
+    fun getInfoByNspace(callingUid: Int, nspace: Long): List<Info> {
+        ensureLoaded(callingUid)
+        keysByNspace[Nspace(callingUid, nspace)]?.let { list ->
+            Stats.count(Stats.Counter.CACHE_HITS)
+            return list.map { touch(it) }
+        }
+        Stats.count(Stats.Counter.CACHE_MISSES)
+        return storage?.loadByNspace(callingUid, nspace).orEmpty().onEach { putKey(it.key, it, false) }
+    }
+
+    private fun getInfo(key: Key): Info? {
+        ensureLoaded(key.uid)
+        keys[key]?.let {
+            Stats.count(Stats.Counter.CACHE_HITS)
+            return touch(it)
+        }
+        Stats.count(Stats.Counter.CACHE_MISSES)
+        return storage?.load(key.uid, key.alias)?.also { putKey(key, it, false) }
+    }
+
+    fun getKeys(uid: Int): Set<Key> = keysByUid[uid].orEmpty()
+
+    fun getKeyResponse(uid: Int, alias: String): KeyEntryResponse? = getInfo(Key(uid, alias))?.response
+
+    fun getKeyPairs(uid: Int, alias: String): Pair<KeyPair, List<Certificate>>? = getInfo(Key(uid, alias))?.let { Pair(it.keyPair, it.chain) }
 
     fun deleteKey(uid: Int, alias: String) {
-        keys.remove(Key(uid, alias))
+        deleteKey(Key(uid, alias))
     }
 
     fun deleteKey(key: Key) {
-        keys.remove(key)
+        synchronized(keysLock) {
+            keys.remove(key)?.let { unindex(key, it) }
+        }
+        storage?.delete(key)
     }
-}
 
+    /**
+     * Uids with keys in memory or persisted.
+     */
+    fun getUids(): Set<Int> = keysByUid.keys + storage?.uids().orEmpty()
+
+    /**
+     * Drops every key of the uid, in memory and persisted, as keystore2 does when its app is removed.
+     */
+    fun deleteUid(uid: Int) {
+        storage?.deleteAll(uid)
+        synchronized(keysLock) {
+            lruByUid[uid]?.values?.toList()?.forEach {
+                keys.remove(it.key, it)
+                unindex(it.key, it)
+            }
+        }
+        loadedUids.remove(uid)
+        Logger.i("deleted keys of removed uid $uid")
+    }
+
+    fun stats(): String = synchronized(keysLock) {
+        "entries=${keys.size}/$maxEntries bytes=$residentBytes/$maxBytes uids=${keysByUid.size} evictions=$evictions"
+    }
+}
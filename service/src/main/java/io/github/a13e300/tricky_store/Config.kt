@@ -1,42 +1,80 @@
 package io.github.a13e300.tricky_store
 
 import android.content.pm.IPackageManager
+import android.content.pm.PackageManager
 import android.os.Build
 import android.os.FileObserver
 import android.os.IBinder
 import android.os.IInterface
 import android.os.ServiceManager
-import android.os.SystemProperties
 import com.akuleshov7.ktoml.Toml
 import com.akuleshov7.ktoml.TomlIndentation
 import com.akuleshov7.ktoml.TomlInputConfig
 import com.akuleshov7.ktoml.TomlOutputConfig
-import com.akuleshov7.ktoml.annotations.TomlComments
+import io.github.a13e300.tricky_store.binder.BinderInterceptor
+import io.github.a13e300.tricky_store.keystore.ApplicationIdCache
+import io.github.a13e300.tricky_store.keystore.AttestationTemplate
 import io.github.a13e300.tricky_store.keystore.CertHack
+import io.github.a13e300.tricky_store.keystore.KeyPairPool
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.async
-import kotlinx.serialization.Serializable
 import kotlinx.serialization.encodeToString
 import top.qwq2333.ohmykeymint.IOhMyKsService
 import top.qwq2333.ohmykeymint.IOhMySecurityLevel
 import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 object Config {
-    private val hackPackages = mutableSetOf<String>()
-    private val generatePackages = mutableSetOf<String>()
+    @Volatile
+    private var hackPackages = setOf<String>()
+    @Volatile
+    private var generatePackages = setOf<String>()
+
+    private enum class Target { NONE, HACK, GENERATE }
+
+    private class UidInfo(val packages: Array<String>?, val target: Target)
+
+    // replaced as a whole when target.txt or installed packages change,
+    // so a lookup racing with the change can't put a stale decision into the new map
+    @Volatile
+    private var uidInfos = ConcurrentHashMap<Int, UidInfo>()
+
+    private fun invalidateUidInfos(updateFilter: Boolean = true) {
+        uidInfos = ConcurrentHashMap()
+        if (updateFilter) updateUidFilter()
+    }
+
+    // let the native interceptor skip uids of untargeted apps without calling into the daemon
+    private fun updateUidFilter() = runCatching {
+        val pm = getPm() ?: error("pm not found")
+        val appIds = (generatePackages + hackPackages).mapNotNull {
+            pm.getPackageUidCompat(it, PackageManager.MATCH_UNINSTALLED_PACKAGES.toLong(), 0)
+                .takeIf { uid -> uid >= 0 }?.rem(PER_USER_RANGE)
+        }.distinct().toIntArray()
+        BinderInterceptor.updateUidFilter(appIds)
+        Logger.d { "update uid filter: ${appIds.joinToString()}" }
+    }.onFailure {
+        Logger.e("failed to update uid filter, intercept all uids", it)
+        BinderInterceptor.updateUidFilter(null)
+    }
 
     private fun updateTargetPackages(f: File?) = runCatching {
-        hackPackages.clear()
-        generatePackages.clear()
-        listOf("com.google.android.gsf", "com.google.android.gms", "com.android.vending").forEach { generatePackages.add(it) }
+        val hack = mutableSetOf<String>()
+        val generate = mutableSetOf<String>()
+        listOf("com.google.android.gsf", "com.google.android.gms", "com.android.vending").forEach { generate.add(it) }
         f?.readLines()?.forEach {
             if (it.isNotBlank() && !it.startsWith("#")) {
                 val n = it.trim()
-                if (n.endsWith("!")) generatePackages.add(n.removeSuffix("!").trim())
-                else hackPackages.add(n)
+                if (n.endsWith("!")) generate.add(n.removeSuffix("!").trim())
+                else hack.add(n)
             }
         }
+        hackPackages = hack
+        generatePackages = generate
+        invalidateUidInfos()
         Logger.i("update hack packages: $hackPackages, generate packages=$generatePackages")
     }.onFailure {
         Logger.e("failed to update target files", it)
@@ -48,10 +86,81 @@ object Config {
         Logger.e("failed to update keybox", it)
     }
 
+    private fun dumpStats(trigger: File) = runCatching {
+        val caches = mapOf(
+            "key_cache" to Cache.stats(), "key_pair_pool" to KeyPairPool.stats(), "operations" to Operations.stats(),
+            "keybox_encodings" to CertHack.stats()
+        )
+        Stats.dump(root, BinderInterceptor.readHookStats(), caches)
+        trigger.delete()
+    }.onFailure {
+        Logger.e("failed to dump stats", it)
+    }
+
+    private const val PER_USER_RANGE = 100000
+
+    private const val PACKAGE_POLL_INTERVAL_MS = 1000L
+
+    // Package manager bumps the sequence number of getChangedPackages as soon as an install, update
+    // or uninstall completes, while it delays rewriting packages.xml by seconds. A target installed
+    // and launched right away would miss the uid filter and get its first keys from keystore2.
+    // Changes are tracked per user, every user with a data directory is polled.
+    private object PackageChanges {
+        private const val USERS_PATH = "/data/user_de"
+
+        // last sequence number per user, absent until the user was polled once
+        private val sequences = HashMap<Int, Int>()
+
+        private val poller = Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "PackageChanges").apply { isDaemon = true }
+        }
+
+        fun start() {
+            poller.scheduleWithFixedDelay(::poll, 0, PACKAGE_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)
+        }
+
+        // keystore2 deletes the keys of a removed app, an app installed later with its uid must not get them
+        private fun deleteKeysOfRemovedUids(pm: IPackageManager, userId: Int) {
+            Cache.getUids().filter { it / PER_USER_RANGE == userId && pm.getPackagesForUid(it) == null }
+                .forEach { Cache.deleteUid(it) }
+        }
+
+        private fun users() = File(USERS_PATH).list()?.mapNotNull { it.toIntOrNull() } ?: listOf(0)
+
+        private fun poll() = runCatching {
+            val pm = getPm() ?: error("pm not found")
+            for (userId in users()) {
+                val last = sequences[userId]
+                // null if nothing changed since that sequence, 0 stands for boot
+                val changed = pm.getChangedPackages(last ?: 0, userId)
+                if (changed == null) {
+                    sequences[userId] = last ?: 0
+                    continue
+                }
+                sequences[userId] = changed.sequenceNumber
+                val names = changed.packageNames
+                // application ids of a user seen for the first time may already be cached
+                ApplicationIdCache.onPackagesChanged(userId, names)
+                deleteKeysOfRemovedUids(pm, userId)
+                // the first query reports everything changed since boot, the targets were resolved after that
+                if (last == null) continue
+                Logger.d { "packages changed in user $userId: $names" }
+                // uids of removed packages are reused, so "not targeted" answers are dropped on any change
+                invalidateUidInfos(names.any { it in generatePackages || it in hackPackages })
+            }
+            ApplicationIdCache.setTracking(true)
+        }.onFailure {
+            ApplicationIdCache.setTracking(false)
+            Logger.e("failed to query changed packages", it)
+        }
+    }
+
     private const val CONFIG_PATH = "/data/adb/tricky_store"
     private const val TARGET_FILE = "target.txt"
     private const val KEYBOX_FILE = "keybox.xml"
     private const val DEV_CONFIG_FILE = "devconfig.toml"
+    // touch to get stats.txt and stats.json
+    private const val DUMP_STATS_FILE = "dump_stats"
     private val root = File(CONFIG_PATH)
 
     object ConfigObserver : FileObserver(root, CLOSE_WRITE or DELETE or MOVED_FROM or MOVED_TO) {
@@ -66,6 +175,7 @@ object Config {
                 TARGET_FILE -> updateTargetPackages(f)
                 KEYBOX_FILE -> updateKeyBox(f)
                 DEV_CONFIG_FILE -> parseDevConfig(f)
+                DUMP_STATS_FILE -> if (f != null) dumpStats(f)
             }
         }
     }
@@ -89,6 +199,7 @@ object Config {
         parseDevConfig(fDevConfig)
 
         ConfigObserver.startWatching()
+        PackageChanges.start()
     }
 
     private fun resetProp() = CoroutineScope(Dispatchers.IO).async {
@@ -100,7 +211,7 @@ object Config {
                 )
             )
             if (p.waitFor() == 0) {
-                Logger.d("resetprop security_patch from ${Build.VERSION.SECURITY_PATCH} to ${devConfig.generalSettings.securityPatch}")
+                Logger.d { "resetprop security_patch from ${Build.VERSION.SECURITY_PATCH} to ${devConfig.generalSettings.securityPatch}" }
             }
         }.onFailure {
             Logger.e("", it)
@@ -155,10 +266,23 @@ object Config {
 
     fun needGenerate(callingUid: Int) = kotlin.runCatching {
         if (generatePackages.isEmpty() && hackPackages.isEmpty()) return false
-        val ps = getPm()?.getPackagesForUid(callingUid)
-        ps?.any { it in generatePackages || it in hackPackages }
+        getUidInfo(callingUid)?.let { it.target != Target.NONE }
     }.onFailure { Logger.e("failed to get packages", it) }.getOrNull() ?: false
 
+    private fun getUidInfo(uid: Int): UidInfo? {
+        val infos = uidInfos
+        infos[uid]?.let { return it }
+        val pm = getPm() ?: return null
+        val ps = pm.getPackagesForUid(uid)
+        val target = when {
+            ps == null -> Target.NONE
+            ps.any { it in generatePackages } -> Target.GENERATE
+            ps.any { it in hackPackages } -> Target.HACK
+            else -> Target.NONE
+        }
+        return UidInfo(ps, target).also { infos[uid] = it }
+    }
+
     private val toml = Toml(
         inputConfig = TomlInputConfig(
             ignoreUnknownNames = true,
@@ -176,44 +300,6 @@ object Config {
     var devConfig = DeviceConfig()
         private set
 
-    @Serializable
-    data class DeviceConfig(
-        val generalSettings: General = General(),
-        @TomlComments("Remember to override the corresponding system properties when modifying the following values") val deviceProps: DeviceProps = DeviceProps(),
-        val globalConfig: AppConfig = AppConfig(),
-        @TomlComments("Disable specific module function for specific app.", "Do not modify if you know nothing about it.") val additionalAppConfig: Map<String, AppConfig> = mapOf(
-            "com.example.app" to AppConfig(generateKey = true, createOperation = true, importKey = true)
-        )
-    ) {
-        @Serializable
-        data class General(
-            @TomlComments("YYYY-MM-DD") val securityPatch: String = Build.VERSION.SECURITY_PATCH,
-            @TomlComments("SDK Version (i.e.: 35 for Android 15)") val osVersion: Int = Build.VERSION.SDK_INT,
-            @TomlComments("Auto reset the security patch props on startup") val autoResetProps: Boolean = true,
-        )
-
-        @Serializable
-        data class DeviceProps(
-            val brand: String = Build.BRAND,
-            val device: String = Build.DEVICE,
-            val product: String = Build.PRODUCT,
-            val manufacturer: String = Build.MANUFACTURER,
-            val model: String = Build.MODEL,
-            val serial: String = SystemProperties.get("ro.serialno", ""),
-
-            val meid: String = SystemProperties.get("ro.ril.oem.imei", ""),
-            val imei: String = SystemProperties.get("ro.ril.oem.meid", ""),
-            val imei2: String = SystemProperties.get("ro.ril.oem.imei2", ""),
-        )
-
-        @Serializable
-        data class AppConfig(
-            val generateKey: Boolean = true,
-            val createOperation: Boolean = false,
-            val importKey: Boolean = true,
-        )
-    }
-
     fun isGenerateKeyEnabled(callingUid: Int) = devConfig.additionalAppConfig[callingUid.getPackageNameByUid()]?.generateKey != false && devConfig.globalConfig.generateKey
 
     fun isCreateOperationEnabled(callingUid: Int) = devConfig.additionalAppConfig[callingUid.getPackageNameByUid()]?.createOperation != false && devConfig.globalConfig.createOperation
@@ -221,7 +307,7 @@ object Config {
     fun isImportKeyEnabled(callingUid: Int) = devConfig.additionalAppConfig[callingUid.getPackageNameByUid()]?.importKey != false && devConfig.globalConfig.importKey
 
     private fun Int.getPackageNameByUid() = runCatching {
-        getPm()?.getPackagesForUid(this)?.first()
+        getUidInfo(this)?.packages?.first()
     }.getOrNull()
 
     fun parseDevConfig(f: File?) = runCatching {
@@ -236,6 +322,10 @@ object Config {
             // in case there're new updates for device config
             f.writeText(Toml.encodeToString(devConfig))
         }
+        devConfig.keyPairPool.run { KeyPairPool.configure(enabled, depth) }
+        devConfig.keyCache.run { Cache.configure(maxEntries, maxBytes, maxEntriesPerUid) }
+        Operations.configure(devConfig.maxOperations)
+        AttestationTemplate.invalidate()
         resetProp()
         ConfigObserver.startWatching()
     }.onFailure {
@@ -0,0 +1,63 @@
+package io.github.a13e300.tricky_store
+
+import android.os.Build
+import android.os.SystemProperties
+import com.akuleshov7.ktoml.annotations.TomlComments
+import kotlinx.serialization.Serializable
+
+@Serializable
+data class DeviceConfig(
+    val generalSettings: General = General(),
+    @TomlComments("Remember to override the corresponding system properties when modifying the following values") val deviceProps: DeviceProps = DeviceProps(),
+    val globalConfig: AppConfig = AppConfig(),
+    @TomlComments("Disable specific module function for specific app.", "Do not modify if you know nothing about it.") val additionalAppConfig: Map<String, AppConfig> = mapOf(
+        "com.example.app" to AppConfig(generateKey = true, createOperation = true, importKey = true)
+    ),
+    @TomlComments("Key pairs generated in background for generateKey requests") val keyPairPool: KeyPairPoolConfig = KeyPairPoolConfig(),
+    @TomlComments("Limits of generated keys kept in memory, least recently used keys are dropped first") val keyCache: KeyCacheConfig = KeyCacheConfig(),
+    @TomlComments("Unfinished createOperation operations kept at once, the least recently used one is pruned beyond it") val maxOperations: Int = 64,
+) {
+    @Serializable
+    data class General(
+        @TomlComments("YYYY-MM-DD") val securityPatch: String = Build.VERSION.SECURITY_PATCH,
+        @TomlComments("SDK Version (i.e.: 35 for Android 15)") val osVersion: Int = Build.VERSION.SDK_INT,
+        @TomlComments("Auto reset the security patch props on startup") val autoResetProps: Boolean = true,
+    )
+
+    @Serializable
+    data class DeviceProps(
+        val brand: String = Build.BRAND,
+        val device: String = Build.DEVICE,
+        val product: String = Build.PRODUCT,
+        val manufacturer: String = Build.MANUFACTURER,
+        val model: String = Build.MODEL,
+        val serial: String = SystemProperties.get("ro.serialno", ""),
+
+        val meid: String = SystemProperties.get("ro.ril.oem.imei", ""),
+        val imei: String = SystemProperties.get("ro.ril.oem.meid", ""),
+        val imei2: String = SystemProperties.get("ro.ril.oem.imei2", ""),
+    )
+
+    @Serializable
+    data class KeyPairPoolConfig(
+        val enabled: Boolean = true,
+        @TomlComments("Number of ready key pairs per shape, shape is EC:<curve> or RSA:<size>[:<exponent>]") val depth: Map<String, Int> = mapOf(
+            "EC:secp256r1" to 2,
+            "RSA:2048" to 1,
+        ),
+    )
+
+    @Serializable
+    data class KeyCacheConfig(
+        val maxEntries: Int = 1024,
+        @TomlComments("Estimated size of keys, certificate chains and responses") val maxBytes: Long = 8L shl 20,
+        @TomlComments("An app over its quota only drops its own keys") val maxEntriesPerUid: Int = 128,
+    )
+
+    @Serializable
+    data class AppConfig(
+        val generateKey: Boolean = true,
+        val createOperation: Boolean = false,
+        val importKey: Boolean = true,
+    )
+}
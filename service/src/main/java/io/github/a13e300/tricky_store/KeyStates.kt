@@ -0,0 +1,47 @@
+package io.github.a13e300.tricky_store
+
+import io.github.a13e300.tricky_store.keystore.CertHack
+import java.security.KeyPair
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keys of the keystore1 flow by uid and alias, generateKey -> exportKey -> attestKey. Each step
+ * replaces the state of its key only, binder threads working on other keys never wait on it.
+ */
+class KeyStates {
+    data class Key(val uid: Int, val alias: String)
+
+    private data class State(val params: CertHack.KeyGenParameters, val keyPair: KeyPair? = null)
+
+    private val states = ConcurrentHashMap<Key, State>()
+
+    fun generate(key: Key, params: CertHack.KeyGenParameters) {
+        states[key] = State(params)
+    }
+
+    fun params(key: Key): CertHack.KeyGenParameters? = states[key]?.params
+
+    /**
+     * A new pair for the parameters of the key, kept for attestKey unless the key was generated
+     * again in the meantime. Null for unknown keys.
+     */
+    fun export(key: Key): KeyPair? {
+        val state = states[key] ?: return null
+        val kp = CertHack.generateKeyPair(state.params) ?: return null
+        states.computeIfPresent(key) { _, s -> if (s.params === state.params) s.copy(keyPair = kp) else s }
+        return kp
+    }
+
+    /**
+     * The chain of the exported pair with the challenge, null if the key wasn't exported yet or
+     * the chain couldn't be built.
+     * The parameters are shared by concurrent attestations of the key, the challenge goes to a copy.
+     */
+    fun attest(key: Key, challenge: ByteArray): List<ByteArray>? {
+        val state = states[key] ?: return null
+        val kp = state.keyPair ?: return null
+        val params = state.params.copy()
+        params.attestationChallenge = challenge
+        return CertHack.generateChain(key.uid, params, kp)
+    }
+}
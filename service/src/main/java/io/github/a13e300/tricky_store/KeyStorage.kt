@@ -0,0 +1,363 @@
+package io.github.a13e300.tricky_store
+
+import android.os.Parcel
+import android.system.keystore2.KeyEntryResponse
+import android.system.keystore2.KeyMetadata
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.security.KeyFactory
+import java.security.KeyPair
+import java.security.cert.CertificateFactory
+import java.security.spec.PKCS8EncodedKeySpec
+import java.security.spec.X509EncodedKeySpec
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+/**
+ * Generated keys persisted as one append-only log per uid, so they survive keystore2 restarts.
+ * A log is indexed on the first access of its uid, records are decoded when [Cache] misses them.
+ * Appends are queued and written with a single fsync per batch on the storage thread.
+ *
+ * Record: int payload length, int crc32 of the payload, payload. A torn or corrupt tail
+ * (the daemon died while appending) is cut off when the log is indexed.
+ */
+object KeyStorage : Cache.Storage {
+    private const val PUT = 1
+    private const val DELETE = 2
+    private const val FLUSH_DELAY_MS = 200L
+    private const val MAX_RECORD_SIZE = 1 shl 20
+    // compact once dead records outnumber live ones
+    private const val MIN_DEAD_RECORDS = 16
+
+    private val dir = File("/data/adb/tricky_store/keys")
+
+    private val executor = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "KeyStorage").apply { isDaemon = true }
+    }
+
+    private val provider by lazy { BouncyCastleProvider() }
+
+    private class Location(val nspace: Long, var offset: Long, var pending: Cache.Info?)
+
+    // all fields guarded by the log itself
+    private class KeyLog(val uid: Int) {
+        val file = File(dir, "$uid.log")
+        val locations = HashMap<String, Location>()
+        var size = 0L
+        var dead = 0
+        val queued = ArrayList<Pair<ByteArray, Location?>>()
+        var indexed = false
+        // all keys of the uid were deleted, a new log takes over the file
+        var removed = false
+    }
+
+    private val logs = ConcurrentHashMap<Int, KeyLog>()
+
+    // logs with queued records, guarded by itself
+    private val dirty = LinkedHashSet<KeyLog>()
+    private var flushScheduled = false
+
+    // indexed under the lock of the log, not of the map, which would block other uids on the read
+    private fun log(uid: Int): KeyLog {
+        val log = logs.computeIfAbsent(uid) { KeyLog(it) }
+        synchronized(log) {
+            if (!log.indexed) {
+                index(log)
+                log.indexed = true
+            }
+        }
+        return log
+    }
+
+    private fun index(log: KeyLog) {
+        if (!log.file.exists()) return
+        val bytes = log.file.readBytes()
+        val input = DataInputStream(ByteArrayInputStream(bytes))
+        var offset = 0L
+        while (offset < bytes.size) {
+            val payload = runCatching { readRecord(input) }.getOrNull() ?: break
+            val record = DataInputStream(ByteArrayInputStream(payload))
+            val type = record.readByte().toInt()
+            val alias = record.readUTF()
+            val old = when (type) {
+                PUT -> log.locations.put(alias, Location(record.readLong(), offset, null))
+                else -> log.locations.remove(alias).also { log.dead++ }
+            }
+            if (old != null) log.dead++
+            offset += 8 + payload.size
+        }
+        if (offset < bytes.size) {
+            Logger.e("key log of ${log.uid} corrupted at $offset, dropping ${bytes.size - offset} bytes")
+            RandomAccessFile(log.file, "rw").use { it.setLength(offset) }
+        }
+        log.size = offset
+        Logger.d { "indexed ${log.locations.size} keys of ${log.uid}" }
+        if (log.dead >= MIN_DEAD_RECORDS && log.dead > log.locations.size) {
+            executor.execute { compact(log) }
+        }
+    }
+
+    private fun readRecord(input: DataInputStream): ByteArray? {
+        val length = input.readInt()
+        val crc = input.readInt()
+        if (length <= 0 || length > MAX_RECORD_SIZE) return null
+        val payload = ByteArray(length)
+        input.readFully(payload)
+        return payload.takeIf { crc32(it) == crc }
+    }
+
+    private fun crc32(bytes: ByteArray) = CRC32().run {
+        update(bytes)
+        value.toInt()
+    }
+
+    private fun encode(info: Cache.Info): ByteArray = ByteArrayOutputStream().also { bytes ->
+        DataOutputStream(bytes).run {
+            writeByte(PUT)
+            writeUTF(info.key.alias)
+            writeLong(info.response.metadata?.key?.nspace ?: 0)
+            writeInt(info.key.uid)
+            writeUTF(info.keyPair.private.algorithm)
+            writeBytes(info.keyPair.private.encoded)
+            writeBytes(info.keyPair.public.encoded)
+            writeInt(info.chain.size)
+            info.chain.forEach { writeBytes(it.encoded) }
+            val parcel = Parcel.obtain()
+            try {
+                info.response.metadata.writeToParcel(parcel, 0)
+                writeBytes(parcel.marshall())
+            } finally {
+                parcel.recycle()
+            }
+        }
+    }.toByteArray()
+
+    private fun encodeDelete(alias: String): ByteArray = ByteArrayOutputStream().also { bytes ->
+        DataOutputStream(bytes).run {
+            writeByte(DELETE)
+            writeUTF(alias)
+        }
+    }.toByteArray()
+
+    private fun DataOutputStream.writeBytes(bytes: ByteArray) {
+        writeInt(bytes.size)
+        write(bytes)
+    }
+
+    private fun DataInputStream.readBytes(): ByteArray = ByteArray(readInt()).also { readFully(it) }
+
+    private fun decode(payload: ByteArray): Cache.Info = DataInputStream(ByteArrayInputStream(payload)).run {
+        readByte()
+        val alias = readUTF()
+        readLong()
+        val uid = readInt()
+        val keyFactory = KeyFactory.getInstance(readUTF(), provider)
+        val private = keyFactory.generatePrivate(PKCS8EncodedKeySpec(readBytes()))
+        val public = keyFactory.generatePublic(X509EncodedKeySpec(readBytes()))
+        // not documented as thread safe, decodes run in parallel for different uids
+        val certificateFactory = CertificateFactory.getInstance("X.509")
+        val chain = List(readInt()) { certificateFactory.generateCertificate(ByteArrayInputStream(readBytes())) }
+        val parcel = Parcel.obtain()
+        val metadata = try {
+            val bytes = readBytes()
+            parcel.unmarshall(bytes, 0, bytes.size)
+            parcel.setDataPosition(0)
+            KeyMetadata.CREATOR.createFromParcel(parcel)
+        } finally {
+            parcel.recycle()
+        }
+        val response = KeyEntryResponse().apply {
+            this.metadata = metadata
+            iSecurityLevel = KeystoreInterceptor.getSecurityLevel(metadata.keySecurityLevel)
+        }
+        val key = Cache.Key(uid, alias)
+        Cache.Info(key, KeyPair(public, private), chain, response)
+    }
+
+    // caller holds the log
+    private fun read(log: KeyLog, location: Location): Cache.Info? {
+        location.pending?.let { return it }
+        return runCatching {
+            RandomAccessFile(log.file, "r").use {
+                it.seek(location.offset)
+                val length = it.readInt()
+                val crc = it.readInt()
+                if (length <= 0 || length > MAX_RECORD_SIZE) throw IOException("bad record length $length")
+                val payload = ByteArray(length)
+                it.readFully(payload)
+                if (crc32(payload) != crc) throw IOException("bad record crc")
+                decode(payload)
+            }
+        }.onFailure {
+            Logger.e("failed to read key of ${log.uid} at ${location.offset}", it)
+        }.getOrNull()
+    }
+
+    override fun load(uid: Int): List<Cache.Info> {
+        val log = log(uid)
+        return synchronized(log) {
+            log.locations.values.mapNotNull { read(log, it) }
+        }
+    }
+
+    override fun load(uid: Int, alias: String): Cache.Info? {
+        val log = log(uid)
+        return synchronized(log) {
+            log.locations[alias]?.let { read(log, it) }
+        }
+    }
+
+    override fun loadByNspace(uid: Int, nspace: Long): List<Cache.Info> {
+        val log = log(uid)
+        return synchronized(log) {
+            log.locations.values.filter { it.nspace == nspace }.mapNotNull { read(log, it) }
+        }
+    }
+
+    override fun put(info: Cache.Info) {
+        val record = runCatching { encode(info) }.getOrElse {
+            Logger.e("failed to encode key ${info.key}", it)
+            return
+        }
+        val log = log(info.key.uid)
+        synchronized(log) {
+            val location = Location(info.response.metadata?.key?.nspace ?: 0, -1, info)
+            if (log.locations.put(info.key.alias, location) != null) log.dead++
+            log.queued.add(record to location)
+        }
+        schedule(log)
+    }
+
+    override fun delete(key: Cache.Key) {
+        val log = log(key.uid)
+        synchronized(log) {
+            if (log.locations.remove(key.alias) == null) return
+            log.dead += 2
+            log.queued.add(encodeDelete(key.alias) to null)
+        }
+        schedule(log)
+    }
+
+    override fun deleteAll(uid: Int) {
+        val log = logs.remove(uid) ?: KeyLog(uid)
+        synchronized(log) {
+            log.removed = true
+            log.locations.clear()
+            log.queued.clear()
+            if (log.file.exists() && !log.file.delete()) Logger.e("failed to delete ${log.file}")
+        }
+    }
+
+    override fun uids(): Collection<Int> =
+        dir.list()?.mapNotNull { it.removeSuffix(".log").takeIf { n -> n != it }?.toIntOrNull() }.orEmpty()
+
+    private fun schedule(log: KeyLog) {
+        synchronized(dirty) {
+            dirty.add(log)
+            if (flushScheduled) return
+            flushScheduled = true
+        }
+        executor.schedule(::flushDirty, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS)
+    }
+
+    private fun flushDirty() {
+        val logs = synchronized(dirty) {
+            flushScheduled = false
+            dirty.toList().also { dirty.clear() }
+        }
+        logs.forEach { write(it) }
+    }
+
+    private fun write(log: KeyLog) = synchronized(log) {
+        if (log.queued.isEmpty() || log.removed) return@synchronized
+        val start = log.size
+        runCatching {
+            dir.mkdirs()
+            val written = ArrayList<Pair<Location, Long>>()
+            var size = start
+            FileOutputStream(log.file, true).use { out ->
+                val data = DataOutputStream(out.buffered())
+                for ((record, location) in log.queued) {
+                    data.writeInt(record.size)
+                    data.writeInt(crc32(record))
+                    data.write(record)
+                    location?.let { written.add(it to size) }
+                    size += 8 + record.size
+                }
+                data.flush()
+                out.fd.sync()
+            }
+            written.forEach { (location, offset) ->
+                location.offset = offset
+                location.pending = null
+            }
+            log.size = size
+            Logger.d { "wrote ${log.queued.size} key records of ${log.uid}" }
+        }.onFailure {
+            // the keys are still served from memory until the daemon restarts
+            Logger.e("failed to write keys of ${log.uid}", it)
+            runCatching { RandomAccessFile(log.file, "rw").use { it.setLength(start) } }
+        }
+        log.queued.clear()
+        if (log.dead >= MIN_DEAD_RECORDS && log.dead > log.locations.size) compact(log)
+    }
+
+    // rewrites the live records of a log, replacing it atomically
+    private fun compact(log: KeyLog) = synchronized(log) {
+        if (log.queued.isNotEmpty() || log.removed) return@synchronized
+        val tmp = File(dir, "${log.uid}.log.tmp")
+        runCatching {
+            val moved = HashMap<Location, Long>()
+            var size = 0L
+            RandomAccessFile(log.file, "r").use { input ->
+                FileOutputStream(tmp).use { out ->
+                    val data = DataOutputStream(out.buffered())
+                    for (location in log.locations.values) {
+                        // never written, still served from memory
+                        if (location.pending != null) continue
+                        input.seek(location.offset)
+                        val length = input.readInt()
+                        if (length <= 0 || length > MAX_RECORD_SIZE) throw EOFException("bad record length $length")
+                        val record = ByteArray(8 + length)
+                        input.seek(location.offset)
+                        input.readFully(record)
+                        data.write(record)
+                        moved[location] = size
+                        size += record.size
+                    }
+                    data.flush()
+                    out.fd.sync()
+                }
+            }
+            if (!tmp.renameTo(log.file)) throw IOException("failed to replace ${log.file}")
+            moved.forEach { (location, offset) -> location.offset = offset }
+            log.size = size
+            log.dead = 0
+            Logger.d { "compacted key log of ${log.uid}, ${log.locations.size} keys" }
+        }.onFailure {
+            tmp.delete()
+            Logger.e("failed to compact keys of ${log.uid}", it)
+        }
+    }
+
+    /**
+     * Writes queued records now, called before the daemon exits.
+     */
+    fun flush() {
+        runCatching {
+            executor.submit(::flushDirty).get(1, TimeUnit.SECONDS)
+        }.onFailure {
+            Logger.e("failed to flush keys", it)
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.a13e300.tricky_store
+
+import android.hardware.security.keymint.Algorithm
+import android.hardware.security.keymint.Digest
+import android.hardware.security.keymint.ErrorCode
+import android.hardware.security.keymint.KeyPurpose
+import android.hardware.security.keymint.PaddingMode
+import android.os.ServiceSpecificException
+import android.system.keystore2.IKeystoreOperation
+import io.github.a13e300.tricky_store.keystore.CertHack
+import java.security.Key
+import java.security.KeyPair
+import java.security.Signature
+import java.security.SignatureException
+
+/**
+ * Emulated operation on a generated key, signing or verifying with the purpose, digest and padding
+ * passed to createOperation. Failures carry the KeyMint error code keystore2 would have returned.
+ *
+ * A binder of its own per operation, a reused one could be driven by a client still holding it.
+ */
+class KeyStoreOperation private constructor(
+    private val key: Key, private val algorithm: String, private val verify: Boolean
+) : IKeystoreOperation.Stub() {
+    companion object {
+        fun create(keyPair: KeyPair, params: CertHack.KeyGenParameters): KeyStoreOperation {
+            if (params.purpose.size > 1) throw ServiceSpecificException(
+                ErrorCode.UNSUPPORTED_PURPOSE, "more than one purpose ${params.purpose}"
+            )
+            val verify = when (val purpose = params.purpose.firstOrNull() ?: KeyPurpose.SIGN) {
+                KeyPurpose.SIGN, KeyPurpose.ATTEST_KEY -> false
+                KeyPurpose.VERIFY -> true
+                else -> throw ServiceSpecificException(ErrorCode.UNSUPPORTED_PURPOSE, "unsupported purpose $purpose")
+            }
+            // KeyMint begin takes exactly one of each, EC keys ignore the padding
+            val digest = params.digest.singleOrNull() ?: throw ServiceSpecificException(
+                ErrorCode.UNSUPPORTED_DIGEST, "one digest expected, got ${params.digest}"
+            )
+            if (params.padding.size > 1) throw ServiceSpecificException(
+                ErrorCode.UNSUPPORTED_PADDING_MODE, "more than one padding ${params.padding}"
+            )
+            val algorithm = signatureAlgorithm(params.algorithm, digest, params.padding.singleOrNull())
+            return KeyStoreOperation(if (verify) keyPair.public else keyPair.private, algorithm, verify)
+                .also { Operations.add(it) }
+        }
+
+        /**
+         * The JCA name for a KeyMint algorithm, digest and padding. Digest NONE signs input the
+         * caller already hashed, RSA needs a padding and EC takes none.
+         */
+        fun signatureAlgorithm(algorithm: Int, digest: Int, padding: Int?): String {
+            val hash = when (digest) {
+                Digest.NONE -> "NONE"
+                Digest.MD5 -> "MD5"
+                Digest.SHA1 -> "SHA1"
+                Digest.SHA_2_224 -> "SHA224"
+                Digest.SHA_2_256 -> "SHA256"
+                Digest.SHA_2_384 -> "SHA384"
+                Digest.SHA_2_512 -> "SHA512"
+                else -> throw ServiceSpecificException(ErrorCode.UNSUPPORTED_DIGEST, "unsupported digest $digest")
+            }
+            return when (algorithm) {
+                Algorithm.EC -> {
+                    if (digest == Digest.MD5) throw ServiceSpecificException(
+                        ErrorCode.UNSUPPORTED_DIGEST, "MD5 is not supported for EC"
+                    )
+                    if (padding != null && padding != PaddingMode.NONE) throw ServiceSpecificException(
+                        ErrorCode.UNSUPPORTED_PADDING_MODE, "padding $padding for EC"
+                    )
+                    "${hash}withECDSA"
+                }
+
+                Algorithm.RSA -> when (padding) {
+                    // without a digest, the input is padded as is, no DigestInfo is added
+                    PaddingMode.RSA_PKCS1_1_5_SIGN -> "${hash}withRSA"
+                    // MGF1 uses the same digest and the salt is as long as the digest, as in KeyMint
+                    PaddingMode.RSA_PSS -> {
+                        if (digest == Digest.NONE || digest == Digest.MD5) throw ServiceSpecificException(
+                            ErrorCode.INCOMPATIBLE_DIGEST, "digest $digest with PSS"
+                        )
+                        "${hash}withRSA/PSS"
+                    }
+
+                    else -> throw ServiceSpecificException(
+                        ErrorCode.UNSUPPORTED_PADDING_MODE, "unsupported padding $padding for signing"
+                    )
+                }
+
+                else -> throw ServiceSpecificException(
+                    ErrorCode.UNSUPPORTED_ALGORITHM, "unsupported algorithm $algorithm"
+                )
+            }
+        }
+    }
+
+    // back in the pool once finished, null from then on
+    private var signature: Signature? = SignaturePool.acquire(key, algorithm)
+    private var pruned = false
+
+    init {
+        Logger.d { "KeyStoreOperation using algorithm $algorithm, verify=$verify, key=${key.algorithm}" }
+    }
+
+    private fun active(): Signature {
+        if (pruned) throw ServiceSpecificException(ErrorCode.TOO_MANY_OPERATIONS, "operation pruned")
+        val s = signature ?: throw IllegalStateException("operation finished or aborted")
+        Operations.touch(this)
+        return s
+    }
+
+    /**
+     * Drops the signature of an operation [Operations] gave up on, later calls fail with
+     * TOO_MANY_OPERATIONS. False if it was finished or aborted in the meantime.
+     */
+    @Synchronized
+    fun prune(): Boolean {
+        signature ?: return false
+        signature = null
+        pruned = true
+        return true
+    }
+
+    @Synchronized
+    override fun updateAad(aadInput: ByteArray?) {
+        // do nothing for now
+        Logger.d("updateAad called, ignored")
+    }
+
+    @Synchronized
+    override fun update(input: ByteArray): ByteArray? {
+        active().update(input)
+        return null
+    }
+
+    @Synchronized
+    override fun finish(input: ByteArray?, signature: ByteArray?): ByteArray? {
+        val s = active()
+        this.signature = null
+        Operations.remove(this)
+        Logger.d { "finish called with ${input?.size ?: 0} bytes" }
+        if (input != null && input.isNotEmpty()) s.update(input)
+        if (!verify) {
+            val result = try {
+                s.sign()
+            } catch (e: SignatureException) {
+                // e.g. pre-hashed input longer than the key allows
+                throw ServiceSpecificException(ErrorCode.INVALID_INPUT_LENGTH, e.message)
+            }
+            SignaturePool.release(key, algorithm, s)
+            return result
+        }
+
+        signature ?: throw ServiceSpecificException(ErrorCode.VERIFICATION_FAILED, "no signature to verify")
+        val valid = try {
+            s.verify(signature)
+        } catch (e: SignatureException) {
+            throw ServiceSpecificException(ErrorCode.VERIFICATION_FAILED, e.message)
+        }
+        SignaturePool.release(key, algorithm, s)
+        if (!valid) throw ServiceSpecificException(ErrorCode.VERIFICATION_FAILED, "signature does not match")
+        return null
+    }
+
+    @Synchronized
+    override fun abort() {
+        Logger.d("abort called")
+        // holds input of the aborted operation, not reusable
+        signature = null
+        Operations.remove(this)
+    }
+}
@@ -20,7 +20,6 @@ import io.github.a13e300.tricky_store.binder.BinderInterceptor
 import io.github.a13e300.tricky_store.keystore.CertHack
 import top.qwq2333.ohmykeymint.CallerInfo
 import java.math.BigInteger
-import java.security.KeyPair
 import java.util.Date
 import kotlin.system.exitProcess
 
@@ -36,14 +35,18 @@ object Keystore1Interceptor : BinderInterceptor() {
         getTransactCode(IKeystoreService.Stub::class.java, "exportKey")
     private val attestKeyTransaction =
         getTransactCode(IKeystoreService.Stub::class.java, "attestKey")
+
+    override val interceptedCodes = intArrayOf(
+        getTransaction, generateKeyTransaction, getKeyCharacteristicsTransaction,
+        exportKeyTransaction, attestKeyTransaction
+    )
+
+    override val postTransactCodes = intArrayOf(getTransaction)
     private lateinit var keystore: IBinder
 
     private const val DESCRIPTOR = "android.security.keystore.IKeystoreService"
 
-    private val KeyArguments = HashMap<Key, CertHack.KeyGenParameters>()
-    private val KeyPairs = HashMap<Key, KeyPair>()
-
-    data class Key(val uid: Int, val alias: String)
+    private val keyStates = KeyStates()
 
     override fun onPreTransact(
         target: IBinder,
@@ -94,7 +97,7 @@ object Keystore1Interceptor : BinderInterceptor() {
                                         Logger.e("Read rsaPublicExponent error", ex)
                                     }
                                 }
-                                KeyArguments[Key(callingUid, alias)] = kgp
+                                keyStates.generate(KeyStates.Key(callingUid, alias), kgp)
                             }
 
                             val kc = KeyCharacteristics()
@@ -126,7 +129,7 @@ object Keystore1Interceptor : BinderInterceptor() {
                             Logger.i("getKeyCharacteristicsTransaction uid $callingUid alias $alias")
                             val kc = KeyCharacteristics()
                             val kma = KeymasterArguments()
-                            kma.addEnum(KeymasterDefs.KM_TAG_ALGORITHM, KeyArguments[Key(callingUid, alias)]!!.algorithm)
+                            kma.addEnum(KeymasterDefs.KM_TAG_ALGORITHM, keyStates.params(KeyStates.Key(callingUid, alias))!!.algorithm)
                             kc.swEnforced = KeymasterArguments()
                             kc.hwEnforced = kma
 
@@ -154,8 +157,7 @@ object Keystore1Interceptor : BinderInterceptor() {
                             val callback = IKeystoreExportKeyCallback.Stub.asInterface(data.readStrongBinder())
                             val alias = data.readString()!!.split("_")[1]
                             Logger.i("exportKeyTransaction uid $callingUid alias $alias")
-                            val kp = CertHack.generateKeyPair(KeyArguments[Key(callingUid, alias)]!!)
-                            KeyPairs[Key(callingUid, alias)] = kp!!
+                            val kp = keyStates.export(KeyStates.Key(callingUid, alias))!!
 
                             val erP = Parcel.obtain()
                             erP.writeInt(KeyStore.NO_ERROR)
@@ -194,10 +196,7 @@ object Keystore1Interceptor : BinderInterceptor() {
                                 val ksr = KeystoreResponse.CREATOR.createFromParcel(ksrP)
                                 ksrP.recycle()
 
-                                val key = Key(callingUid, alias)
-                                val ka = KeyArguments[key]!!
-                                ka.attestationChallenge = attestationChallenge
-                                val chain = CertHack.generateChain(callingUid, ka, KeyPairs[key]!!)
+                                val chain = keyStates.attest(KeyStates.Key(callingUid, alias), attestationChallenge)!!
 
                                 val kcc = KeymasterCertificateChain(chain)
                                 callback.onFinished(ksr, kcc)
@@ -231,7 +230,7 @@ object Keystore1Interceptor : BinderInterceptor() {
         if (target != keystore || code != getTransaction || reply == null) return Skip
         if (kotlin.runCatching { reply.readException() }.exceptionOrNull() != null) return Skip
         val p = Parcel.obtain()
-        Logger.d("intercept post $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()} replySz=${reply.dataSize()}")
+        Logger.d { "intercept post $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()} replySz=${reply.dataSize()}" }
         try {
             data.enforceInterface(DESCRIPTOR)
             val alias = data.readString() ?: ""
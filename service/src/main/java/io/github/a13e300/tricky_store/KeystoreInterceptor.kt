@@ -27,6 +27,9 @@ object KeystoreInterceptor : BinderInterceptor() {
     private val deleteKeyTransaction =
         getTransactCode(IKeystoreService.Stub::class.java, "deleteKey") // 5
 
+    override val interceptedCodes =
+        intArrayOf(getKeyEntryTransaction, updateSubcomponentTransaction, deleteKeyTransaction)
+
     private lateinit var keystore: IBinder
 
     private var teeInterceptor: SecurityLevelInterceptor? = null
@@ -43,7 +46,7 @@ object KeystoreInterceptor : BinderInterceptor() {
         val callingPid = ctx.callingPid.toInt()
         if (!Config.needGenerate(callingUid)) return Skip
         val omk = getOmk()
-        Logger.d("KeystoreInceptor onPreTransact code=$code")
+        Logger.d { "KeystoreInceptor onPreTransact code=$code" }
         when (code) {
             /*            getSecurityLevelTransaction -> {
                             omk ?: return Skip
@@ -58,12 +61,12 @@ object KeystoreInterceptor : BinderInterceptor() {
                             }
                         }*/
             getKeyEntryTransaction -> {
-                Logger.d("KeystoreInceptor getKeyEntryTransaction pre $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}")
+                Logger.d { "KeystoreInceptor getKeyEntryTransaction pre $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}" }
                 if (Config.needGenerate(callingUid))
                     runCatching {
                         data.enforceInterface(IKeystoreService.DESCRIPTOR)
                         if (!Config.isGenerateKeyEnabled(callingUid)) {
-                            Logger.d("generateKey feature disabled for $callingUid")
+                            Logger.d { "generateKey feature disabled for $callingUid" }
                             return Skip
                         }
 
@@ -92,12 +95,12 @@ object KeystoreInterceptor : BinderInterceptor() {
                             p.writeNoException()
                             p.writeTypedObject(response, 0)
                         } else {
-                            Logger.d("key not found for uid=$callingUid alias=${descriptor.alias}")
+                            Logger.d { "key not found for uid=$callingUid alias=${descriptor.alias}" }
                             // We skip system uid requests because tricky store obviously does not store every keys
                             // and it may cause issues with system services expecting certain keys to be present.
                             // like lockscreen keys.
                             if (callingUid == 1000) {
-                                Logger.d("system uid requesting generated key alias=${descriptor.alias}")
+                                Logger.d { "system uid requesting generated key alias=${descriptor.alias}" }
                                 return Skip
                             }
                             p.writeException(
@@ -115,11 +118,11 @@ object KeystoreInterceptor : BinderInterceptor() {
             }
 
             updateSubcomponentTransaction -> {
-                Logger.d("KeystoreInceptor onPreTransact updateSubcomponent uid=$callingUid pid=$callingPid")
+                Logger.d { "KeystoreInceptor onPreTransact updateSubcomponent uid=$callingUid pid=$callingPid" }
                 runCatching {
                     data.enforceInterface(IKeystoreService.DESCRIPTOR)
                     if (!Config.isImportKeyEnabled(callingUid)) {
-                        Logger.d("importKey feature disabled for $callingUid")
+                        Logger.d { "importKey feature disabled for $callingUid" }
                         return Skip
                     }
                     val descriptor =
@@ -143,14 +146,14 @@ object KeystoreInterceptor : BinderInterceptor() {
                     }
 
                     if (certificateChain != null) {
-                        Logger.d("updateSubcomponent certificateChain sz=${certificateChain.size}")
+                        Logger.d { "updateSubcomponent certificateChain sz=${certificateChain.size}" }
                     }
 
                     if (publicCert != null) {
                         val cf: CertificateFactory = CertificateFactory.getInstance("X.509")
                         val cert = cf.generateCertificate(publicCert.inputStream())
 
-                        Logger.d("$cert")
+                        Logger.d { "$cert" }
 
                         Cache.finalizedImportedKey(callingUid, callingPid, cert)
                         Logger.i("store public cert uid=$callingUid alias=${descriptor.alias} sz=${publicCert.size}")
@@ -161,7 +164,7 @@ object KeystoreInterceptor : BinderInterceptor() {
             }
 
             deleteKeyTransaction -> {
-                Logger.d("KeystoreInceptor onPreTransact deleteKeyTransaction uid=$callingUid pid=$callingPid")
+                Logger.d { "KeystoreInceptor onPreTransact deleteKeyTransaction uid=$callingUid pid=$callingPid" }
                 data.enforceInterface("android.system.keystore2.IKeystoreService")
                 val keyDescriptor = data.readTypedObject(KeyDescriptor.CREATOR) ?: return Skip
 
@@ -175,7 +178,7 @@ object KeystoreInterceptor : BinderInterceptor() {
                     }
                 }
 
-                Logger.d("KeystoreInterceptor deleteKey uid=$callingUid alias=${keyDescriptor.alias}")
+                Logger.d { "KeystoreInterceptor deleteKey uid=$callingUid alias=${keyDescriptor.alias}" }
 
                 Cache.deleteKey(Key(callingUid, keyDescriptor.alias))
                 Cache.deleteImportedKey(callingUid, callingPid)
@@ -247,9 +250,16 @@ object KeystoreInterceptor : BinderInterceptor() {
         return true
     }
 
+    fun getSecurityLevel(level: Int) = when (level) {
+        SecurityLevel.TRUSTED_ENVIRONMENT -> teeInterceptor?.original
+        SecurityLevel.STRONGBOX -> strongBoxInterceptor?.original
+        else -> null
+    }
+
     object Killer : IBinder.DeathRecipient {
         override fun binderDied() {
             Logger.d("keystore exit, daemon restart")
+            KeyStorage.flush()
             exitProcess(0)
         }
     }
@@ -2,20 +2,35 @@ package io.github.a13e300.tricky_store;
 
 import android.util.Log;
 
+import java.util.function.Supplier;
+
 public class Logger {
     private static final String TAG = "TrickyStore";
+
+    // debug logs are dropped from release builds, R8 removes the guarded calls entirely.
+    // Messages built per transaction go through the Supplier overloads so nothing is formatted either.
+    public static final boolean DEBUG = BuildConfig.DEBUG;
+
     public static void d(String msg) {
-        Log.d(TAG, msg);
+        if (DEBUG) Log.d(TAG, msg);
+    }
+
+    public static void d(Supplier<String> msg) {
+        if (DEBUG) Log.d(TAG, msg.get());
     }
 
     public static void d(String tag, String msg) {
-        Log.d(TAG, tag + ": " + msg);
+        if (DEBUG) Log.d(TAG, tag + ": " + msg);
     }
 
     public static void dd(String msg) {
         d("wtf: " + msg);
     }
 
+    public static void dd(Supplier<String> msg) {
+        if (DEBUG) d("wtf: " + msg.get());
+    }
+
     public static void e(String msg) {
         Log.e(TAG, msg);
     }
@@ -8,6 +8,7 @@ import android.os.Build
 fun main(args: Array<String>) {
     verifySelf()
     Logger.i("Welcome to TrickyStore!")
+    Cache.storage = KeyStorage
     while (true) {
         if (Build.VERSION.SDK_INT == Build.VERSION_CODES.Q || Build.VERSION.SDK_INT == Build.VERSION_CODES.R) {
             if (!Keystore1Interceptor.tryRunKeystoreInterceptor()) {
@@ -0,0 +1,58 @@
+package io.github.a13e300.tricky_store
+
+/**
+ * Emulated operations not finished or aborted yet. Clients dropping an operation without either
+ * would otherwise keep its Signature until their binder reference dies, so beyond the limit the
+ * least recently used operation is pruned like keystore2 prunes operations of the backend.
+ */
+object Operations {
+    @Volatile
+    private var maxOperations = 64
+
+    // least recently used first, guarded by itself
+    private val live = LinkedHashMap<KeyStoreOperation, Unit>(16, 0.75f, true)
+
+    fun configure(maxOperations: Int) {
+        this.maxOperations = maxOperations.coerceAtLeast(1)
+        prune(synchronized(live) { evict() })
+    }
+
+    fun add(op: KeyStoreOperation) {
+        Stats.count(Stats.Counter.OPERATIONS_CREATED)
+        prune(synchronized(live) {
+            live[op] = Unit
+            evict()
+        })
+    }
+
+    fun touch(op: KeyStoreOperation) {
+        synchronized(live) { live[op] }
+    }
+
+    fun remove(op: KeyStoreOperation) {
+        synchronized(live) { live.remove(op) }
+    }
+
+    private fun evict(): List<KeyStoreOperation> {
+        if (live.size <= maxOperations) return emptyList()
+        val victims = ArrayList<KeyStoreOperation>(live.size - maxOperations)
+        val it = live.keys.iterator()
+        while (live.size > maxOperations) {
+            victims.add(it.next())
+            it.remove()
+        }
+        return victims
+    }
+
+    // outside the lock, operations take it to touch themselves while holding their own
+    private fun prune(victims: List<KeyStoreOperation>) {
+        victims.forEach {
+            if (it.prune()) {
+                Stats.count(Stats.Counter.OPERATIONS_PRUNED)
+                Logger.i("pruned operation $it, more than $maxOperations live")
+            }
+        }
+    }
+
+    fun stats(): String = synchronized(live) { "live=${live.size}/$maxOperations" }
+}
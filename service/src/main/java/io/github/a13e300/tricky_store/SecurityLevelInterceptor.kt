@@ -6,10 +6,10 @@ import android.hardware.security.keymint.KeyParameterValue
 import android.hardware.security.keymint.Tag
 import android.os.IBinder
 import android.os.Parcel
+import android.os.ServiceSpecificException
 import android.system.keystore2.AuthenticatorSpec
 import android.system.keystore2.Authorization
 import android.system.keystore2.CreateOperationResponse
-import android.system.keystore2.IKeystoreOperation
 import android.system.keystore2.IKeystoreSecurityLevel
 import android.system.keystore2.KeyDescriptor
 import android.system.keystore2.KeyEntryResponse
@@ -20,12 +20,10 @@ import io.github.a13e300.tricky_store.keystore.CertHack
 import io.github.a13e300.tricky_store.keystore.Utils
 import top.qwq2333.ohmykeymint.CallerInfo
 import java.security.KeyFactory
-import java.security.PrivateKey
-import java.security.Signature
 import java.security.cert.Certificate
 
 class SecurityLevelInterceptor(
-    private val original: IKeystoreSecurityLevel, private val level: Int
+    val original: IKeystoreSecurityLevel, private val level: Int
 ) : BinderInterceptor() {
     companion object {
         private val createOperationTransaction =
@@ -38,15 +36,22 @@ class SecurityLevelInterceptor(
             getTransactCode(IKeystoreSecurityLevel.Stub::class.java, "importWrappedKey") // 4
         private val deleteKeyTransaction =
             getTransactCode(IKeystoreSecurityLevel.Stub::class.java, "deleteKey") // 6
-
+        private val transactions = intArrayOf(
+            createOperationTransaction, generateKeyTransaction, importKeyTransaction,
+            importWrappedKeyTransaction, deleteKeyTransaction
+        )
     }
 
+    override val interceptedCodes = transactions
+
+    override val statsName get() = "${super.statsName}-$level"
+
     override fun onPreTransact(
         target: IBinder, code: Int, flags: Int, ctx: CallerInfo, data: Parcel
     ): Result {
         val callingUid = ctx.callingUid.toInt()
         val callingPid = ctx.callingPid.toInt()
-        Logger.d("SecurityLevelInterceptor received onPreTransact code=$code uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}")
+        Logger.d { "SecurityLevelInterceptor received onPreTransact code=$code uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}" }
         if (!Config.needGenerate(callingUid)) return Skip
         val securityLevel = getOhMySecurityLevel(level)
 
@@ -55,7 +60,7 @@ class SecurityLevelInterceptor(
                 data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
                 Logger.i("intercept key gen uid=$callingUid pid=$callingPid")
                 if (!Config.isGenerateKeyEnabled(callingUid)) {
-                    Logger.d("generateKey feature disabled for $callingUid")
+                    Logger.d { "generateKey feature disabled for $callingUid" }
                     return Skip
                 }
 
@@ -94,7 +99,7 @@ class SecurityLevelInterceptor(
             importKeyTransaction -> runCatching {
                 data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
                 if (!Config.isImportKeyEnabled(callingUid)) {
-                    Logger.d("importKey feature disabled for $callingUid")
+                    Logger.d { "importKey feature disabled for $callingUid" }
                     return Skip
                 }
 
@@ -149,7 +154,7 @@ class SecurityLevelInterceptor(
                     val response = buildResponse(pair.second, kgp, attestationKeyDescriptor ?: keyDescriptor)
                     Cache.putKey(callingUid, keyDescriptor.alias, pair.first, pair.second, response)
 
-                    Logger.d("imported key generated uid=$callingUid alias=${keyDescriptor.alias}")
+                    Logger.d { "imported key generated uid=$callingUid alias=${keyDescriptor.alias}" }
                 }
 
                 return Skip
@@ -159,9 +164,9 @@ class SecurityLevelInterceptor(
 
             createOperationTransaction -> runCatching {
                 data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
-                Logger.d("createOperationTransaction uid=$callingUid pid=$callingPid")
+                Logger.d { "createOperationTransaction uid=$callingUid pid=$callingPid" }
                 if (!Config.isCreateOperationEnabled(callingUid)) {
-                    Logger.d("createOperation feature disabled for $callingUid")
+                    Logger.d { "createOperation feature disabled for $callingUid" }
                     return Skip
                 }
 
@@ -185,11 +190,7 @@ class SecurityLevelInterceptor(
                 }
 
                 if (keyDescriptor.domain != 4) throw IllegalArgumentException("unsupported domain ${keyDescriptor.domain}")
-                kgp.purpose.any { it == 2 /* sign */ || it == 7 /* attest */ } ||
-                        throw IllegalArgumentException("unsupported purpose ${kgp.purpose}")
-                kgp.digest.forEach {
-                    Logger.d("digest: $it")
-                }
+                Logger.d { "purpose: ${kgp.purpose} digest: ${kgp.digest} padding: ${kgp.padding}" }
                 val algorithm = when (kgp.algorithm) {
                     Algorithm.EC -> "ECDSA"
                     Algorithm.RSA -> "RSA"
@@ -203,15 +204,22 @@ class SecurityLevelInterceptor(
                 }
                 infos.filter { it.response.metadata.key.alias == keyDescriptor.alias }.let {
                     it.forEach {
-                        Logger.d("found key alias=${it.key.alias} uid=${it.key.uid} actual=${it.response.metadata.key.alias}")
-                        Logger.d("createOperation", it.chain.first().toString())
+                        Logger.d { "found key alias=${it.key.alias} uid=${it.key.uid} actual=${it.response.metadata.key.alias}" }
+                        Logger.d { "createOperation: ${it.chain.first()}" }
                     }
                 }
-                Logger.d("found keys number: ${infos.size}")
+                Logger.d { "found keys number: ${infos.size}" }
                 val info = infos.first { it.response.metadata.key.alias == keyDescriptor.alias && it.keyPair.private.algorithm == algorithm }
-                Logger.d("createOperation", info.chain.first().toString())
-                val op = KeyStoreOperation(info.keyPair.private, "SHA256with$algorithm")
+                Logger.d { "createOperation: ${info.chain.first()}" }
                 val parcel = Parcel.obtain()
+                val op = try {
+                    KeyStoreOperation.create(info.keyPair, kgp)
+                } catch (e: ServiceSpecificException) {
+                    // the key is ours, keystore2 would only fail with a misleading key not found
+                    Logger.e("createOperation uid=$callingUid alias=${keyDescriptor.alias}: ${e.message}")
+                    parcel.writeException(e)
+                    return OverrideReply(0, parcel)
+                }
                 parcel.writeNoException()
                 val createOperationResponse = CreateOperationResponse().apply {
                     iOperation = op
@@ -226,7 +234,7 @@ class SecurityLevelInterceptor(
             importWrappedKeyTransaction -> runCatching {
                 data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
                 if (!Config.isImportKeyEnabled(callingUid)) {
-                    Logger.d("importKey feature disabled for $callingUid")
+                    Logger.d { "importKey feature disabled for $callingUid" }
                     return Skip
                 }
 
@@ -269,41 +277,6 @@ class SecurityLevelInterceptor(
         return Skip
     }
 
-    private class KeyStoreOperation : IKeystoreOperation.Stub {
-        val signature: Signature
-        var isAborted = false
-
-        constructor(privateKey: PrivateKey, algorithm: String) {
-            Logger.d("KeyStoreOperation using algorithm $algorithm, privateKey=${privateKey.algorithm}")
-            signature = Signature.getInstance(algorithm)
-            signature.initSign(privateKey)
-        }
-
-        override fun updateAad(aadInput: ByteArray?) {
-            // do nothing for now
-            Logger.d("updateAad called, ignored")
-        }
-
-        override fun update(input: ByteArray): ByteArray? {
-            if (isAborted) throw IllegalStateException("operation aborted")
-            Logger.d("update called with ${input.size} bytes")
-            signature.update(input)
-            return null
-        }
-
-        override fun finish(input: ByteArray?, signature: ByteArray?): ByteArray? {
-            if (isAborted) throw IllegalStateException("operation aborted")
-            Logger.d("finish called with ${input?.size ?: 0} bytes")
-            this.signature.update(input)
-            return this.signature.sign()
-        }
-
-        override fun abort() {
-            Logger.d("abort called")
-            isAborted = true
-        }
-    }
-
     private fun buildResponse(
         chain: List<Certificate>,
         params: CertHack.KeyGenParameters,
@@ -0,0 +1,62 @@
+package io.github.a13e300.tricky_store
+
+import java.security.Key
+import java.security.PrivateKey
+import java.security.Provider
+import java.security.PublicKey
+import java.security.Signature
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Signatures initialized for signing or verifying, kept per key and algorithm across operations.
+ * Looking up the provider and initSign cost more than signing a small payload, and apps
+ * refreshing tokens sign with the same key over and over.
+ */
+object SignaturePool {
+    private const val MAX_KEYS = 64
+    private const val MAX_PER_KEY = 4
+
+    // keys are compared by identity, Cache hands out the same KeyPair for a key entry
+    private class PoolKey(val key: Key, val algorithm: String) {
+        override fun equals(other: Any?) = other is PoolKey && other.key === key && other.algorithm == algorithm
+        override fun hashCode() = System.identityHashCode(key) * 31 + algorithm.hashCode()
+    }
+
+    // least recently used first, guarded by itself
+    private val pools = object : LinkedHashMap<PoolKey, ArrayDeque<Signature>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<PoolKey, ArrayDeque<Signature>>) =
+            size > MAX_KEYS
+    }
+
+    // the provider that accepted a key class for an algorithm, so later misses skip the provider scan
+    private val providers = ConcurrentHashMap<Pair<String, Class<*>>, Provider>()
+
+    /**
+     * A signature initialized with [key], for signing if it is a [PrivateKey], for verifying otherwise.
+     */
+    fun acquire(key: Key, algorithm: String): Signature {
+        synchronized(pools) { pools[PoolKey(key, algorithm)]?.removeLastOrNull() }?.let { return it }
+        val selection = algorithm to key.javaClass
+        val provider = providers[selection]
+        val signature = if (provider != null) Signature.getInstance(algorithm, provider) else Signature.getInstance(algorithm)
+        when (key) {
+            is PrivateKey -> signature.initSign(key)
+            is PublicKey -> signature.initVerify(key)
+            else -> throw IllegalArgumentException("not an asymmetric key: ${key.algorithm}")
+        }
+        // the provider is only settled by init, delayed selection picks the first one taking the key
+        if (provider == null) providers.putIfAbsent(selection, signature.provider)
+        return signature
+    }
+
+    /**
+     * Takes back a signature right after sign() or verify(), which reset it to the state init left it in.
+     * Signatures with input of an unfinished operation must not be released.
+     */
+    fun release(key: Key, algorithm: String, signature: Signature) {
+        synchronized(pools) {
+            val pool = pools.getOrPut(PoolKey(key, algorithm)) { ArrayDeque(MAX_PER_KEY) }
+            if (pool.size < MAX_PER_KEY) pool.addLast(signature)
+        }
+    }
+}
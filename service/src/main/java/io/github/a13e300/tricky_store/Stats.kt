@@ -0,0 +1,177 @@
+package io.github.a13e300.tricky_store
+
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Latency histograms of intercepted transactions and counters of the expensive work done for them,
+ * written to stats.txt and stats.json when dump_stats is created in the config directory.
+ *
+ * Daemon histograms are recorded by [io.github.a13e300.tricky_store.binder.BinderInterceptor],
+ * hook histograms are kept by the native interceptor in keystore and fetched at dump time.
+ */
+object Stats {
+    /**
+     * Phase is pre or post for the daemon handling a callback, hook for the time the native
+     * interceptor adds to a transaction, the original transaction excluded.
+     */
+    data class Key(val binder: String, val code: Int, val phase: String, val outcome: String)
+
+    enum class Counter {
+        KEY_GENERATIONS, CHAIN_HACKS, CACHE_HITS, CACHE_MISSES, OPERATIONS_CREATED, OPERATIONS_PRUNED
+    }
+
+    /**
+     * Log-linear buckets of nanoseconds with 8 sub-buckets per power of two, values are off
+     * by at most 12.5%. The layout is shared with latency_stats.hpp of the native interceptor.
+     */
+    class Histogram {
+        companion object {
+            private const val SUB_BUCKET_BITS = 3
+            private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+            // about 2 minutes, slower transactions land in the last bucket
+            private const val MAX_MAGNITUDE = 36
+            const val BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS
+
+            fun bucketOf(nanos: Long): Int {
+                if (nanos < SUB_BUCKETS) return nanos.coerceAtLeast(0).toInt()
+                val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(nanos)
+                if (magnitude > MAX_MAGNITUDE) return BUCKETS - 1
+                return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS +
+                        ((nanos ushr (magnitude - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKETS - 1))
+            }
+
+            // the highest value of a bucket
+            fun highestOf(bucket: Int): Long {
+                if (bucket < SUB_BUCKETS) return bucket.toLong()
+                val magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1
+                val sub = bucket % SUB_BUCKETS
+                return ((SUB_BUCKETS + sub + 1).toLong() shl (magnitude - SUB_BUCKET_BITS)) - 1
+            }
+        }
+
+        private val buckets = AtomicLongArray(BUCKETS)
+        private val sum = AtomicLong()
+        private val max = AtomicLong()
+
+        fun record(nanos: Long) {
+            buckets.incrementAndGet(bucketOf(nanos))
+            sum.addAndGet(nanos)
+            max.accumulateAndGet(nanos, ::maxOf)
+        }
+
+        // merges buckets recorded elsewhere
+        fun add(bucket: Int, count: Long) {
+            if (bucket in 0 until BUCKETS) buckets.addAndGet(bucket, count)
+        }
+
+        fun addTotals(sum: Long, max: Long) {
+            this.sum.addAndGet(sum)
+            this.max.accumulateAndGet(max, ::maxOf)
+        }
+
+        class Snapshot(val count: Long, val sum: Long, val max: Long, private val counts: LongArray) {
+            val mean get() = if (count == 0L) 0L else sum / count
+
+            fun percentile(p: Double): Long {
+                if (count == 0L) return 0
+                val rank = Math.ceil(count * p / 100).toLong().coerceAtLeast(1)
+                var seen = 0L
+                counts.forEachIndexed { bucket, n ->
+                    seen += n
+                    if (seen >= rank) return minOf(highestOf(bucket), max)
+                }
+                return max
+            }
+        }
+
+        fun snapshot(): Snapshot {
+            val counts = LongArray(BUCKETS) { buckets.get(it) }
+            return Snapshot(counts.sum(), sum.get(), max.get(), counts)
+        }
+    }
+
+    private val histograms = ConcurrentHashMap<Key, Histogram>()
+    private val counters = AtomicLongArray(Counter.entries.size)
+
+    fun record(key: Key, nanos: Long) {
+        histograms.computeIfAbsent(key) { Histogram() }.record(nanos)
+    }
+
+    @JvmStatic
+    fun count(counter: Counter) {
+        counters.incrementAndGet(counter.ordinal)
+    }
+
+    private val PERCENTILES = doubleArrayOf(50.0, 90.0, 99.0, 99.9)
+
+    /**
+     * Writes stats.txt and stats.json into [dir], [hook] are the histograms of the native interceptor.
+     */
+    fun dump(dir: File, hook: Map<Key, Histogram>, caches: Map<String, String>) {
+        val entries = (histograms.entries + hook.entries)
+            .map { it.key to it.value.snapshot() }
+            .sortedWith(compareBy({ it.first.binder }, { it.first.code }, { it.first.phase }, { it.first.outcome }))
+        val counts = Counter.entries.associateWith { counters.get(it.ordinal) }
+        File(dir, "stats.txt").writeText(text(entries, counts, caches))
+        File(dir, "stats.json").writeText(json(entries, counts, caches))
+        Logger.i("stats written to $dir, ${entries.size} histograms")
+    }
+
+    private fun micros(nanos: Long) = "%.1f".format(nanos / 1000.0)
+
+    private fun text(
+        entries: List<Pair<Key, Histogram.Snapshot>>, counts: Map<Counter, Long>, caches: Map<String, String>
+    ) = buildString {
+        appendLine("latency (us)")
+        appendLine(
+            "%-28s %5s %-5s %-15s %9s %9s %9s %9s %9s %9s %9s".format(
+                "binder", "code", "phase", "outcome", "count", "mean", "p50", "p90", "p99", "p99.9", "max"
+            )
+        )
+        entries.forEach { (key, s) ->
+            appendLine(
+                "%-28s %5d %-5s %-15s %9d %9s %9s %9s %9s %9s %9s".format(
+                    key.binder, key.code, key.phase, key.outcome, s.count, micros(s.mean),
+                    *PERCENTILES.map { micros(s.percentile(it)) }.toTypedArray(), micros(s.max)
+                )
+            )
+        }
+        appendLine()
+        counts.forEach { (counter, n) -> appendLine("${counter.name.lowercase()}: $n") }
+        appendLine()
+        caches.forEach { (name, stats) -> appendLine("$name: $stats") }
+    }
+
+    private fun String.quoted() = buildString {
+        append('"')
+        this@quoted.forEach {
+            when {
+                it == '"' || it == '\\' -> append('\\').append(it)
+                it < ' ' -> append("\\u%04x".format(it.code))
+                else -> append(it)
+            }
+        }
+        append('"')
+    }
+
+    private fun json(
+        entries: List<Pair<Key, Histogram.Snapshot>>, counts: Map<Counter, Long>, caches: Map<String, String>
+    ) = buildString {
+        append("{\"latency\":[")
+        entries.forEachIndexed { i, (key, s) ->
+            if (i != 0) append(',')
+            append("{\"binder\":${key.binder.quoted()},\"code\":${key.code},\"phase\":${key.phase.quoted()}")
+            append(",\"outcome\":${key.outcome.quoted()},\"count\":${s.count},\"mean_ns\":${s.mean}")
+            PERCENTILES.forEach { append(",\"p${"%s".format(it).removeSuffix(".0")}_ns\":${s.percentile(it)}") }
+            append(",\"max_ns\":${s.max}}")
+        }
+        append("],\"counters\":{")
+        append(counts.entries.joinToString(",") { (counter, n) -> "${counter.name.lowercase().quoted()}:$n" })
+        append("},\"caches\":{")
+        append(caches.entries.joinToString(",") { (name, stats) -> "${name.quoted()}:${stats.quoted()}" })
+        append("}}\n")
+    }
+}
@@ -4,6 +4,7 @@ import android.os.Binder
 import android.os.IBinder
 import android.os.Parcel
 import io.github.a13e300.tricky_store.Logger
+import io.github.a13e300.tricky_store.Stats
 import top.qwq2333.ohmykeymint.CallerInfo
 
 open class BinderInterceptor : Binder() {
@@ -14,6 +15,13 @@ open class BinderInterceptor : Binder() {
     data class OverrideReply(val code: Int = 0, val reply: Parcel) : Result()
 
     companion object {
+        private const val REGISTER_INTERCEPTOR = 1
+        private const val UPDATE_UID_FILTER = 4
+        private const val DUMP_STATS = 6
+
+        @Volatile
+        private var backdoor: IBinder? = null
+
         fun getBinderBackdoor(b: IBinder): IBinder? {
             val data = Parcel.obtain()
             val reply = Parcel.obtain()
@@ -38,26 +46,130 @@ open class BinderInterceptor : Binder() {
             val reply = Parcel.obtain()
             data.writeStrongBinder(target)
             data.writeStrongBinder(interceptor)
-            backdoor.transact(1, data, reply, 0)
+            data.writeFilter(interceptor.interceptedCodes)
+            data.writeFilter(interceptor.postTransactCodes)
+            backdoor.transact(REGISTER_INTERCEPTOR, data, reply, 0)
+            this.backdoor = backdoor
+            data.recycle()
+            reply.recycle()
+        }
+
+        /**
+         * Only let transactions from the given app ids (uid % 100000) reach the interceptors,
+         * null to intercept every uid.
+         */
+        fun updateUidFilter(appIds: IntArray?) {
+            val bd = backdoor ?: return
+            val data = Parcel.obtain()
+            val reply = Parcel.obtain()
+            try {
+                data.writeFilter(appIds)
+                if (!bd.transact(UPDATE_UID_FILTER, data, reply, 0)) {
+                    Logger.e("failed to update uid filter")
+                }
+            } catch (t: Throwable) {
+                Logger.e("failed to update uid filter", t)
+            } finally {
+                data.recycle()
+                reply.recycle()
+            }
+        }
+
+        /**
+         * Hook latency histograms of the native interceptor, keyed like the daemon ones with phase hook.
+         */
+        fun readHookStats(): Map<Stats.Key, Stats.Histogram> {
+            val bd = backdoor ?: return emptyMap()
+            val data = Parcel.obtain()
+            val reply = Parcel.obtain()
+            try {
+                if (!bd.transact(DUMP_STATS, data, reply, 0)) return emptyMap()
+                return buildMap {
+                    repeat(reply.readInt()) {
+                        val interceptor = reply.readStrongBinder() as? BinderInterceptor
+                        val code = reply.readInt()
+                        val outcome = outcomeName(reply.readInt())
+                        val histogram = Stats.Histogram()
+                        repeat(reply.readInt()) { histogram.add(reply.readInt(), reply.readLong()) }
+                        histogram.addTotals(reply.readLong(), reply.readLong())
+                        val name = interceptor?.statsName ?: "unknown"
+                        put(Stats.Key(name, code, "hook", outcome), histogram)
+                    }
+                }
+            } catch (t: Throwable) {
+                Logger.e("failed to read hook stats", t)
+                return emptyMap()
+            } finally {
+                data.recycle()
+                reply.recycle()
+            }
+        }
+
+        // result types of the native interceptor
+        private fun outcomeName(type: Int) = when (type) {
+            1 -> "skip"
+            2 -> "continue"
+            3 -> "override_reply"
+            4 -> "override_data"
+            else -> "unknown"
+        }
+
+        private fun Parcel.writeFilter(values: IntArray?) {
+            if (values == null) {
+                writeInt(-1)
+            } else {
+                writeInt(values.size)
+                values.forEach { writeInt(it) }
+            }
         }
     }
 
+    /**
+     * Transaction codes this interceptor handles, others are not sent to it. null for all codes.
+     */
+    open val interceptedCodes: IntArray? get() = null
+
+    /**
+     * Transaction codes onPostTransact is called for, null for all codes.
+     * The real reply is not copied to the daemon for other codes.
+     */
+    open val postTransactCodes: IntArray? get() = intArrayOf()
+
+    /**
+     * Name of the intercepted binder in the stats dump.
+     */
+    open val statsName: String get() = javaClass.simpleName
+
+    /**
+     * Reads a payload written by the native interceptor into [into], returns its size.
+     */
+    private fun Parcel.readPayload(into: Parcel): Int {
+        val size = readLong().toInt()
+        if (size != 0) {
+            into.appendFrom(this, dataPosition(), size)
+            into.setDataPosition(0)
+            setDataPosition(dataPosition() + size)
+        }
+        return size
+    }
+
     open fun onPreTransact(target: IBinder, code: Int, flags: Int, ctx: CallerInfo, data: Parcel): Result = Skip
     open fun onPostTransact(target: IBinder, code: Int, flags: Int, ctx: CallerInfo, data: Parcel, reply: Parcel?, resultCode: Int): Result = Skip
 
     override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean {
+        val start = System.nanoTime()
+        var transactionCode = 0
         val result = when (code) {
             1 -> { // PRE_TRANSACT
                 val target = data.readStrongBinder()
                 val theCode = data.readInt()
+                transactionCode = theCode
                 val theFlags = data.readInt()
                 val callingUid = data.readInt()
                 val callingPid = data.readInt()
-                val sz = data.readLong()
                 val theData = Parcel.obtain()
                 try {
-                    theData.appendFrom(data, data.dataPosition(), sz.toInt())
-                    theData.setDataPosition(0)
+                    data.readPayload(theData)
 
                     val ctx = CallerInfo().apply {
                         this.callingUid = callingUid.toLong()
@@ -73,6 +185,7 @@ open class BinderInterceptor : Binder() {
             2 -> { // POST_TRANSACT
                 val target = data.readStrongBinder()
                 val theCode = data.readInt()
+                transactionCode = theCode
                 val theFlags = data.readInt()
                 val callingUid = data.readInt()
                 // val callingSid = data.readString()
@@ -81,15 +194,8 @@ open class BinderInterceptor : Binder() {
                 val theData = Parcel.obtain()
                 val theReply = Parcel.obtain()
                 try {
-                    val sz = data.readLong().toInt()
-                    theData.appendFrom(data, data.dataPosition(), sz)
-                    theData.setDataPosition(0)
-                    data.setDataPosition(data.dataPosition() + sz)
-                    val sz2 = data.readLong().toInt()
-                    if (sz2 != 0) {
-                        theReply.appendFrom(data, data.dataPosition(), sz2)
-                        theReply.setDataPosition(0)
-                    }
+                    data.readPayload(theData)
+                    val sz2 = data.readPayload(theReply)
 
                     val ctx = CallerInfo().apply {
                         this.callingUid = callingUid.toLong()
@@ -105,6 +211,14 @@ open class BinderInterceptor : Binder() {
             }
             else -> return super.onTransact(code, data, reply, flags)
         }
+        val outcome = when (result) {
+            Skip -> "skip"
+            Continue -> "continue"
+            is OverrideReply -> "override_reply"
+            is OverrideData -> "override_data"
+        }
+        val phase = if (code == 1) "pre" else "post"
+        Stats.record(Stats.Key(statsName, transactionCode, phase, outcome), System.nanoTime() - start)
         when (result) {
             Skip -> reply!!.writeInt(1)
             Continue -> reply!!.writeInt(2)
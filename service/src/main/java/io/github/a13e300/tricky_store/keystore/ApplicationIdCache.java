@@ -0,0 +1,99 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import org.bouncycastle.asn1.DEROctetString;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encoded AttestationApplicationId per uid, so a burst of generateKey from one app
+ * does not query package manager and hash signatures for every key.
+ * Entries are dropped when the package change poller of Config reports one of their packages
+ * as changed (installed, updated or removed), which covers version code and signing changes.
+ * Nothing is cached while changes can't be tracked.
+ */
+public final class ApplicationIdCache {
+    private static final int MAX_ENTRIES = 64;
+
+    private record Entry(Set<String> packages, DEROctetString applicationId) {
+    }
+
+    private static final Map<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static boolean tracking;
+    // bumped by every invalidation, an id built from package manager answers older than that is not put
+    private static long generation;
+
+    private static long hits;
+    private static long misses;
+    private static long invalidations;
+
+    private ApplicationIdCache() {
+    }
+
+    static synchronized DEROctetString get(int uid) {
+        var entry = tracking ? entries.get(uid) : null;
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.applicationId;
+    }
+
+    static synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Keeps an id built from package manager answers queried after {@link #generation()} returned
+     * the given value, unless packages changed in the meantime.
+     */
+    static synchronized void put(int uid, String[] packages, DEROctetString applicationId, long generation) {
+        if (!tracking || generation != ApplicationIdCache.generation) return;
+        entries.put(uid, new Entry(new HashSet<>(List.of(packages)), applicationId));
+    }
+
+    /**
+     * Drops entries of the user holding one of the packages.
+     */
+    public static synchronized void onPackagesChanged(int userId, List<String> packages) {
+        generation++;
+        var it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            var e = it.next();
+            if (e.getKey() / 100000 != userId) continue;
+            for (var name : packages) {
+                if (e.getValue().packages.contains(name)) {
+                    it.remove();
+                    invalidations++;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether package changes are tracked, entries are dropped when they no longer are.
+     */
+    public static synchronized void setTracking(boolean tracking) {
+        if (!tracking && ApplicationIdCache.tracking) {
+            generation++;
+            entries.clear();
+        }
+        ApplicationIdCache.tracking = tracking;
+    }
+
+    static synchronized String stats() {
+        long total = hits + misses;
+        return "size=" + entries.size() + " hits=" + hits + " misses=" + misses
+                + " hitRate=" + (total == 0 ? 0 : hits * 100 / total) + "% invalidations=" + invalidations;
+    }
+}
@@ -0,0 +1,150 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Enumerated;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import io.github.a13e300.tricky_store.UtilKt;
+
+/**
+ * DER encoded parts of the key description that only depend on devconfig.toml and the boot state.
+ * Generating a key only encodes its own fields and splices them in.
+ */
+public final class AttestationTemplate {
+    private static final int SEQUENCE = 0x30;
+
+    private static volatile AttestationTemplate current;
+
+    // attestationVersion, attestationSecurityLevel, keymasterVersion, keymasterSecurityLevel
+    private final byte[] header;
+    private final byte[] uniqueId;
+    // sorted by tag number
+    private final Entry[] teeEnforced;
+    private final Entry[] teeEnforcedWithIds;
+
+    private record Entry(int tag, byte[] encoded) {
+        static Entry of(ASN1TaggedObject object) throws IOException {
+            return new Entry(object.getTagNo(), object.getEncoded(ASN1Encoding.DER));
+        }
+    }
+
+    private AttestationTemplate() throws IOException {
+        var out = new ByteArrayOutputStream();
+        out.write(new ASN1Integer(400).getEncoded(ASN1Encoding.DER));
+        out.write(new ASN1Enumerated(1).getEncoded(ASN1Encoding.DER));
+        out.write(new ASN1Integer(400).getEncoded(ASN1Encoding.DER));
+        out.write(new ASN1Enumerated(1).getEncoded(ASN1Encoding.DER));
+        header = out.toByteArray();
+        uniqueId = new DEROctetString("".getBytes()).getEncoded(ASN1Encoding.DER);
+
+        ASN1Encodable[] rootOfTrustEncodables = {new DEROctetString(UtilKt.getBootKey()), ASN1Boolean.TRUE,
+                new ASN1Enumerated(0), new DEROctetString(UtilKt.getBootHash())};
+
+        var entries = new ArrayList<ASN1TaggedObject>(Arrays.asList(
+                new DERTaggedObject(true, 503, DERNull.INSTANCE),
+                new DERTaggedObject(true, 702, new ASN1Integer(0)),
+                new DERTaggedObject(true, 704, new DERSequence(rootOfTrustEncodables)),
+                new DERTaggedObject(true, 705, new ASN1Integer(UtilKt.getOsVersion())),
+                new DERTaggedObject(true, 706, new ASN1Integer(UtilKt.getPatchLevel())),
+                new DERTaggedObject(true, 718, new ASN1Integer(UtilKt.getPatchLevelLong())),
+                new DERTaggedObject(true, 719, new ASN1Integer(UtilKt.getPatchLevelLong())),
+                new DERTaggedObject(true, 724, new DEROctetString(UtilKt.getModuleHash()))));
+        teeEnforced = toEntries(entries);
+        entries.addAll(UtilKt.getTelephonyInfos());
+        teeEnforcedWithIds = toEntries(entries);
+    }
+
+    private static Entry[] toEntries(List<ASN1TaggedObject> objects) throws IOException {
+        var entries = new Entry[objects.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = Entry.of(objects.get(i));
+        }
+        Arrays.sort(entries, Comparator.comparingInt(Entry::tag));
+        return entries;
+    }
+
+    static AttestationTemplate get() throws IOException {
+        var template = current;
+        if (template != null) return template;
+        synchronized (AttestationTemplate.class) {
+            if (current == null) current = new AttestationTemplate();
+            return current;
+        }
+    }
+
+    /**
+     * Drops the cached encodings, the next key is attested with the current devconfig.toml.
+     */
+    public static synchronized void invalidate() {
+        current = null;
+    }
+
+    /**
+     * Builds the extension value from the per-key tee enforced entries, the software enforced
+     * entries (encoded in the given order) and the challenge.
+     */
+    ASN1OctetString build(List<ASN1TaggedObject> teeEnforcedEntries, ASN1Encodable[] softwareEnforcedEncodables,
+                          byte[] challenge, boolean withIds) throws IOException {
+        var dynamic = new ArrayList<>(teeEnforcedEntries);
+        dynamic.sort(Comparator.comparingInt(ASN1TaggedObject::getTagNo));
+        var fixed = withIds ? teeEnforcedWithIds : teeEnforced;
+
+        var tee = new ByteArrayOutputStream();
+        int i = 0;
+        for (var object : dynamic) {
+            while (i < fixed.length && fixed[i].tag < object.getTagNo()) {
+                tee.write(fixed[i++].encoded);
+            }
+            tee.write(object.getEncoded(ASN1Encoding.DER));
+        }
+        while (i < fixed.length) {
+            tee.write(fixed[i++].encoded);
+        }
+
+        var software = new ByteArrayOutputStream();
+        for (var encodable : softwareEnforcedEncodables) {
+            software.write(encodable.toASN1Primitive().getEncoded(ASN1Encoding.DER));
+        }
+
+        var body = new ByteArrayOutputStream();
+        body.write(header);
+        body.write(new DEROctetString(challenge).getEncoded(ASN1Encoding.DER));
+        body.write(uniqueId);
+        writeTlv(body, SEQUENCE, software.toByteArray());
+        writeTlv(body, SEQUENCE, tee.toByteArray());
+
+        var keyDescription = new ByteArrayOutputStream();
+        writeTlv(keyDescription, SEQUENCE, body.toByteArray());
+        return new DEROctetString(keyDescription.toByteArray());
+    }
+
+    private static void writeTlv(ByteArrayOutputStream out, int tag, byte[] content) {
+        out.write(tag);
+        int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (Integer.SIZE - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+                out.write(length >>> shift);
+            }
+        }
+        out.write(content, 0, length);
+    }
+}
@@ -20,14 +20,15 @@ import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.ASN1TaggedObject;
-import org.bouncycastle.asn1.DERNull;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.DERSet;
 import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
@@ -36,12 +37,15 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.operator.AlgorithmNameFinder;
 import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultAlgorithmNameFinder;
+import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.util.io.pem.PemReader;
 
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
@@ -59,22 +63,26 @@ import java.security.spec.RSAKeyGenParameterSpec;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.security.auth.x500.X500Principal;
 
 import io.github.a13e300.tricky_store.Cache;
 import io.github.a13e300.tricky_store.Config;
 import io.github.a13e300.tricky_store.Logger;
+import io.github.a13e300.tricky_store.Stats;
 import io.github.a13e300.tricky_store.UtilKt;
 import top.qwq2333.ohmykeymint.IOhMyKsService;
 
@@ -83,16 +91,23 @@ public final class CertHack {
 
     private static final int ATTESTATION_APPLICATION_ID_PACKAGE_INFOS_INDEX = 0;
     private static final int ATTESTATION_APPLICATION_ID_SIGNATURE_DIGESTS_INDEX = 1;
-    private static final Map<String, KeyBox> keyboxes = new HashMap<>();
-    private static final Map<Key, String> leafAlgorithm = new HashMap<>();
+    private static volatile Map<String, KeyBox> keyboxes = Map.of();
+    private static final Map<Key, String> leafAlgorithm = new ConcurrentHashMap<>();
     private static final int ATTESTATION_PACKAGE_INFO_PACKAGE_NAME_INDEX = 0;
 
     private static final CertificateFactory certificateFactory;
+    private static final AlgorithmNameFinder ALGORITHM_NAMES = new DefaultAlgorithmNameFinder();
 
     public record Key(String alias, int uid) {
     }
 
+    // replaces the stripped BouncyCastle of the platform, registered once since binder threads
+    // look providers up by name
+    private static final BouncyCastleProvider provider = new BouncyCastleProvider();
+
     static {
+        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
+        Security.addProvider(provider);
         try {
             certificateFactory = CertificateFactory.getInstance("X.509");
         } catch (Throwable t) {
@@ -127,30 +142,33 @@ public final class CertHack {
     }
 
     public static void readFromXml(String data, IOhMyKsService omk) {
-        keyboxes.clear();
         if (data == null) {
+            keyboxes = Map.of();
             Logger.i("clear all keyboxes");
             return;
         }
-        XMLParser xmlParser = new XMLParser(data);
+        Map<String, KeyBox> newKeyboxes = new HashMap<>();
 
         try {
-            int numberOfKeyboxes = Integer.parseInt(Objects.requireNonNull(xmlParser.obtainPath(
-                    "AndroidAttestation.NumberOfKeyboxes").get("text")));
+            var document = KeyboxParser.parse(data);
+            var keys = document.keys();
+            int numberOfKeyboxes = document.numberOfKeyboxes();
             for (int i = 0; i < numberOfKeyboxes; i++) {
-                String keyboxAlgorithm = xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "]").get("algorithm");
-                String privateKey = xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "].PrivateKey").get("text");
-                int numberOfCertificates = Integer.parseInt(Objects.requireNonNull(xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.NumberOfCertificates").get("text")));
+                if (i >= keys.size()) {
+                    throw new IllegalArgumentException("expected " + numberOfKeyboxes + " keys but found " + keys.size());
+                }
+                var key = keys.get(i);
+                String keyboxAlgorithm = key.algorithm();
+                String privateKey = key.privateKey().text();
 
                 LinkedList<Certificate> certificateChain = new LinkedList<>();
 
-                for (int j = 0; j < numberOfCertificates; j++) {
-                    Map<String, String> certData = xmlParser.obtainPath(
-                            "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.Certificate[" + j + "]");
-                    certificateChain.add(parseCert(certData.get("text")));
+                for (var pem : key.certificates()) {
+                    try {
+                        certificateChain.add(parseCert(pem.text()));
+                    } catch (Throwable t) {
+                        throw new IllegalArgumentException("invalid certificate at " + pem.position(), t);
+                    }
                 }
                 String algo;
                 if (keyboxAlgorithm.equalsIgnoreCase("ecdsa")) {
@@ -158,35 +176,34 @@ public final class CertHack {
                 } else {
                     algo = KeyProperties.KEY_ALGORITHM_RSA;
                 }
-                var pemKp = parseKeyPair(privateKey);
-                var kp = new JcaPEMKeyConverter().getKeyPair(pemKp);
-                keyboxes.put(algo, new KeyBox(pemKp, kp, certificateChain));
+                PEMKeyPair pemKp;
+                KeyPair kp;
+                try {
+                    pemKp = parseKeyPair(privateKey);
+                    kp = new JcaPEMKeyConverter().getKeyPair(pemKp);
+                } catch (Throwable t) {
+                    throw new IllegalArgumentException("invalid private key at " + key.privateKey().position(), t);
+                }
+                var keyBox = new KeyBox(pemKp, kp, certificateChain);
+                keyBox.prepareSigner(algo.equals(KeyProperties.KEY_ALGORITHM_EC) ? "SHA256withECDSA" : "SHA256withRSA");
+                newKeyboxes.put(algo, keyBox);
 
                 if (omk != null) {
                     try {
-                        if (keyboxAlgorithm.equalsIgnoreCase("ecdsa")) {
+                        boolean ec = keyboxAlgorithm.equalsIgnoreCase("ecdsa");
+                        if (ec || keyboxAlgorithm.equalsIgnoreCase("rsa")) {
                             ArrayList<android.hardware.security.keymint.Certificate> list = new ArrayList<>();
-
-                            for (int j = 0; j < numberOfCertificates; j++) {
-                                Map<String, String> certData = xmlParser.obtainPath(
-                                        "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.Certificate[" + j + "]");
+                            for (var certificate : certificateChain) {
                                 var cert = new android.hardware.security.keymint.Certificate();
-                                cert.encodedCertificate = Base64.getDecoder().decode(UtilKt.parsePemToBase64(certData.get("text")));
+                                cert.encodedCertificate = certificate.getEncoded();
                                 list.add(cert);
                             }
-
-                            omk.updateEcKeybox(Base64.getDecoder().decode(UtilKt.parsePemToBase64(privateKey)), list);
-                        } else if (keyboxAlgorithm.equalsIgnoreCase("rsa")) {
-                            ArrayList<android.hardware.security.keymint.Certificate> list = new ArrayList<>();
-                            for (int j = 0; j < numberOfCertificates; j++) {
-                                Map<String, String> certData = xmlParser.obtainPath(
-                                        "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.Certificate[" + j + "]");
-                                var cert = new android.hardware.security.keymint.Certificate();
-                                cert.encodedCertificate = Base64.getDecoder().decode(UtilKt.parsePemToBase64(certData.get("text")));
-                                list.add(cert);
+                            var encodedKey = Base64.getDecoder().decode(UtilKt.parsePemToBase64(privateKey));
+                            if (ec) {
+                                omk.updateEcKeybox(encodedKey, list);
+                            } else {
+                                omk.updateRsaKeybox(encodedKey, list);
                             }
-
-                            omk.updateRsaKeybox(Base64.getDecoder().decode(UtilKt.parsePemToBase64(privateKey)), list);
                         }
                     } catch (Exception e) {
                         Logger.e("Unable to update keybox to OMK", e);
@@ -197,6 +214,7 @@ public final class CertHack {
         } catch (Throwable t) {
             Logger.e("Error loading xml file (keyboxes cleared): " + t);
         }
+        keyboxes = Map.copyOf(newKeyboxes);
     }
 
     public static Certificate[] hackCertificateChain(Certificate[] caList) {
@@ -225,25 +243,19 @@ public final class CertHack {
 
             LinkedList<Certificate> certificates;
             X509v3CertificateBuilder builder;
-            ContentSigner signer;
 
             var k = keyboxes.get(leaf.getPublicKey().getAlgorithm());
             if (k == null)
                 throw new UnsupportedOperationException("unsupported algorithm " + leaf.getPublicKey().getAlgorithm());
             certificates = new LinkedList<>(k.certificates);
             builder = new X509v3CertificateBuilder(
-                    new X509CertificateHolder(
-                            certificates.get(0).getEncoded()
-                    ).getSubject(),
+                    k.issuer,
                     leafHolder.getSerialNumber(),
                     leafHolder.getNotBefore(),
                     leafHolder.getNotAfter(),
                     leafHolder.getSubject(),
                     leafHolder.getSubjectPublicKeyInfo()
             );
-            signer = new JcaContentSignerBuilder(leaf.getSigAlgName())
-                    .build(k.keyPair.getPrivate());
-
             byte[] verifiedBootKey = UtilKt.getBootKey();
             byte[] verifiedBootHash = null;
             try {
@@ -283,8 +295,9 @@ public final class CertHack {
                 if (OID.getId().equals(extensionOID.getId())) continue;
                 builder.addExtension(leafHolder.getExtension(extensionOID));
             }
-            certificates.addFirst(new JcaX509CertificateConverter().getCertificate(builder.build(signer)));
+            certificates.addFirst(new JcaX509CertificateConverter().getCertificate(k.sign(builder, leaf.getSigAlgName())));
 
+            Stats.count(Stats.Counter.CHAIN_HACKS);
             return certificates.toArray(new Certificate[0]);
 
         } catch (Throwable t) {
@@ -293,16 +306,45 @@ public final class CertHack {
         return caList;
     }
 
+    /**
+     * The encoding of chain[from..] if it is the chain of a loaded keybox, null otherwise.
+     */
+    @Nullable
+    static byte[] encodedCaChain(Certificate[] chain, int from) {
+        for (var k : keyboxes.values()) {
+            var certificates = k.certificates;
+            if (certificates.size() != chain.length - from) continue;
+            int i = 0;
+            while (i < certificates.size() && certificates.get(i) == chain[from + i]) i++;
+            if (i == certificates.size()) return k.caBlob;
+        }
+        return null;
+    }
+
+    public static String stats() {
+        var current = keyboxes;
+        long bytes = 0;
+        for (var k : current.values()) bytes += k.encodedBytes();
+        return "keyboxes=" + current.size() + " encoded_bytes=" + bytes;
+    }
+
+    private static String keyAlgorithmOf(X509CertificateHolder holder) {
+        var oid = holder.getSubjectPublicKeyInfo().getAlgorithm().getAlgorithm();
+        if (X9ObjectIdentifiers.id_ecPublicKey.equals(oid)) return KeyProperties.KEY_ALGORITHM_EC;
+        if (PKCSObjectIdentifiers.rsaEncryption.equals(oid)) return KeyProperties.KEY_ALGORITHM_RSA;
+        return oid.getId();
+    }
+
     public static byte[] hackCertificateChainCA(byte[] caList, String alias, int uid) {
         if (caList == null) throw new UnsupportedOperationException("caList is null!");
         try {
             var key = new Key(alias, uid);
-            var algorithm = leafAlgorithm.get(key);
-            leafAlgorithm.remove(key);
+            var algorithm = leafAlgorithm.remove(key);
             var k = keyboxes.get(algorithm);
             if (k == null)
                 throw new UnsupportedOperationException("unsupported algorithm " + algorithm);
-            return Utils.toBytes(k.certificates);
+            Stats.count(Stats.Counter.CHAIN_HACKS);
+            return k.caBlob;
         } catch (Throwable t) {
             Logger.e("", t);
         }
@@ -312,12 +354,13 @@ public final class CertHack {
     public static byte[] hackCertificateChainUSR(byte[] certificate, String alias, int uid) {
         if (certificate == null) throw new UnsupportedOperationException("leaf is null!");
         try {
-            X509Certificate leaf = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(certificate));
-            byte[] bytes = leaf.getExtensionValue(OID.getId());
-            if (bytes == null) return certificate;
-
-            X509CertificateHolder leafHolder = new X509CertificateHolder(leaf.getEncoded());
+            // parsed once, the names a JCA certificate would give are looked up from the holder
+            X509CertificateHolder leafHolder = new X509CertificateHolder(certificate);
             Extension ext = leafHolder.getExtension(OID);
+            if (ext == null) return certificate;
+            String keyAlgorithm = keyAlgorithmOf(leafHolder);
+            String sigAlgName = ALGORITHM_NAMES.getAlgorithmName(leafHolder.getSignatureAlgorithm());
+
             ASN1Sequence sequence = ASN1Sequence.getInstance(ext.getExtnValue().getOctets());
             ASN1Encodable[] encodables = sequence.toArray();
             ASN1Sequence teeEnforced = (ASN1Sequence) encodables[7];
@@ -335,26 +378,20 @@ public final class CertHack {
 
             LinkedList<Certificate> certificates;
             X509v3CertificateBuilder builder;
-            ContentSigner signer;
 
-            leafAlgorithm.put(new Key(alias, uid), leaf.getPublicKey().getAlgorithm());
-            var k = keyboxes.get(leaf.getPublicKey().getAlgorithm());
+            leafAlgorithm.put(new Key(alias, uid), keyAlgorithm);
+            var k = keyboxes.get(keyAlgorithm);
             if (k == null)
-                throw new UnsupportedOperationException("unsupported algorithm " + leaf.getPublicKey().getAlgorithm());
+                throw new UnsupportedOperationException("unsupported algorithm " + keyAlgorithm);
             certificates = new LinkedList<>(k.certificates);
             builder = new X509v3CertificateBuilder(
-                    new X509CertificateHolder(
-                            certificates.get(0).getEncoded()
-                    ).getSubject(),
+                    k.issuer,
                     leafHolder.getSerialNumber(),
                     leafHolder.getNotBefore(),
                     leafHolder.getNotAfter(),
                     leafHolder.getSubject(),
                     leafHolder.getSubjectPublicKeyInfo()
             );
-            signer = new JcaContentSignerBuilder(leaf.getSigAlgName())
-                    .build(k.keyPair.getPrivate());
-
             byte[] verifiedBootKey = UtilKt.getBootKey();
             byte[] verifiedBootHash = null;
             try {
@@ -394,7 +431,9 @@ public final class CertHack {
                 if (OID.getId().equals(extensionOID.getId())) continue;
                 builder.addExtension(leafHolder.getExtension(extensionOID));
             }
-            return new JcaX509CertificateConverter().getCertificate(builder.build(signer)).getEncoded();
+            var hacked = k.sign(builder, sigAlgName).getEncoded();
+            Stats.count(Stats.Counter.CHAIN_HACKS);
+            return hacked;
 
         } catch (Throwable t) {
             Logger.e("", t);
@@ -407,15 +446,16 @@ public final class CertHack {
         try {
             var algo = params.algorithm;
             if (algo == Algorithm.EC) {
-                Logger.d("GENERATING EC KEYPAIR OF SIZE " + params.keySize);
-                kp = buildECKeyPair(params);
+                Logger.d(() -> "GENERATING EC KEYPAIR OF SIZE " + params.keySize);
+                kp = obtainKeyPair(params);
             } else if (algo == Algorithm.RSA) {
-                Logger.d("GENERATING RSA KEYPAIR OF SIZE " + params.keySize);
-                kp = buildRSAKeyPair(params);
+                Logger.d(() -> "GENERATING RSA KEYPAIR OF SIZE " + params.keySize);
+                kp = obtainKeyPair(params);
             } else {
                 Logger.e("UNSUPPORTED ALGORITHM: " + algo);
                 return null;
             }
+            Stats.count(Stats.Counter.KEY_GENERATIONS);
             return kp;
         } catch (Throwable t) {
             Logger.e("", t);
@@ -424,8 +464,6 @@ public final class CertHack {
     }
 
     public static List<byte[]> generateChain(int uid, KeyGenParameters params, KeyPair kp) {
-        KeyPair rootKP;
-        X500Name issuer;
         KeyBox keyBox = null;
         try {
             var algo = params.algorithm;
@@ -438,12 +476,7 @@ public final class CertHack {
                 Logger.e("UNSUPPORTED ALGORITHM: " + algo);
                 return null;
             }
-            rootKP = keyBox.keyPair;
-            issuer = new X509CertificateHolder(
-                    keyBox.certificates.get(0).getEncoded()
-            ).getSubject();
-
-            X509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(issuer,
+            X509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(keyBox.issuer,
                     new BigInteger("1"),//params.certificateSerial,
                     params.certificateNotBefore,
                     ((X509Certificate) keyBox.certificates.get(0)).getNotAfter(),//params.certificateNotAfter,
@@ -455,18 +488,12 @@ public final class CertHack {
             certBuilder.addExtension(Extension.keyUsage, true, keyUsage);
             certBuilder.addExtension(createExtension(params, uid));
 
-            ContentSigner contentSigner;
-            if (algo == Algorithm.EC) {
-                contentSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(rootKP.getPrivate());
-            } else {
-                contentSigner = new JcaContentSignerBuilder("SHA256withRSA").build(rootKP.getPrivate());
-            }
-            X509CertificateHolder certHolder = certBuilder.build(contentSigner);
-            var leaf = new JcaX509CertificateConverter().getCertificate(certHolder);
-            List<Certificate> chain = new ArrayList<>(keyBox.certificates);
-            chain.add(0, leaf);
+            X509CertificateHolder certHolder = keyBox.sign(certBuilder, algo == Algorithm.EC ? "SHA256withECDSA" : "SHA256withRSA");
+            List<byte[]> chain = new ArrayList<>(keyBox.encodedCertificates.size() + 1);
+            chain.add(certHolder.getEncoded());
+            chain.addAll(keyBox.encodedCertificates);
             //Logger.d("Successfully generated X500 Cert for alias: " + descriptor.alias);
-            return Utils.toListBytes(chain);
+            return chain;
         } catch (Throwable t) {
             Logger.e("", t);
         }
@@ -486,22 +513,20 @@ public final class CertHack {
         try {
             var algo = params.algorithm;
             if (algo == Algorithm.EC) {
-                Logger.d("GENERATING EC KEYPAIR OF SIZE " + size);
-                kp = buildECKeyPair(params);
+                Logger.d(() -> "GENERATING EC KEYPAIR OF SIZE " + size);
+                kp = obtainKeyPair(params);
                 keyBox = keyboxes.get(KeyProperties.KEY_ALGORITHM_EC);
             } else if (algo == Algorithm.RSA) {
-                Logger.d("GENERATING RSA KEYPAIR OF SIZE " + size);
-                kp = buildRSAKeyPair(params);
+                Logger.d(() -> "GENERATING RSA KEYPAIR OF SIZE " + size);
+                kp = obtainKeyPair(params);
                 keyBox = keyboxes.get(KeyProperties.KEY_ALGORITHM_RSA);
             }
             if (keyBox == null) {
                 Logger.e("UNSUPPORTED ALGORITHM: " + algo);
                 return null;
             }
-            rootKP = keyBox.keyPair;
-            issuer = new X509CertificateHolder(
-                    keyBox.certificates.get(0).getEncoded()
-            ).getSubject();
+            rootKP = null;
+            issuer = keyBox.issuer;
 
             if (attestPurpose) {
                 var info = Cache.INSTANCE.getKeyPairs(uid, attestKeyDescriptor.alias);
@@ -513,7 +538,7 @@ public final class CertHack {
                 }
             }
 
-            Logger.d("certificateSubject: " + params.certificateSubject);
+            Logger.d(() -> "certificateSubject: " + params.certificateSubject);
             X509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(issuer,
                     params.certificateSerial,
                     params.certificateNotBefore,
@@ -522,7 +547,7 @@ public final class CertHack {
                     kp.getPublic()
             );
 
-            params.purpose.forEach((it) -> Logger.d("CertHack: Purpose: " + it));
+            if (Logger.DEBUG) params.purpose.forEach((it) -> Logger.d("CertHack: Purpose: " + it));
             KeyUsage keyUsage;
             if (params.purpose.stream().anyMatch((it) -> it == 0 || it == 1)) {
                 keyUsage = new KeyUsage(KeyUsage.keyEncipherment | KeyUsage.dataEncipherment);
@@ -536,13 +561,13 @@ public final class CertHack {
                 Logger.d("No attestationChallenge provided, skipping attestation extension");
             }
 
-            ContentSigner contentSigner;
-            if (algo == Algorithm.EC) {
-                contentSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(rootKP.getPrivate());
+            var signatureAlgorithm = algo == Algorithm.EC ? "SHA256withECDSA" : "SHA256withRSA";
+            X509CertificateHolder certHolder;
+            if (rootKP == null) {
+                certHolder = keyBox.sign(certBuilder, signatureAlgorithm);
             } else {
-                contentSigner = new JcaContentSignerBuilder("SHA256withRSA").build(rootKP.getPrivate());
+                certHolder = certBuilder.build(new JcaContentSignerBuilder(signatureAlgorithm).build(rootKP.getPrivate()));
             }
-            X509CertificateHolder certHolder = certBuilder.build(contentSigner);
             var leaf = new JcaX509CertificateConverter().getCertificate(certHolder);
             List<Certificate> chain;
             if (!attestPurpose) {
@@ -551,7 +576,8 @@ public final class CertHack {
                 chain = new ArrayList<>();
             }
             chain.add(0, leaf);
-            Logger.d("Successfully generated X500 Cert for alias: " + descriptor.alias);
+            Logger.d(() -> "Successfully generated X500 Cert for alias: " + descriptor.alias);
+            Stats.count(Stats.Counter.KEY_GENERATIONS);
             return new Pair<>(kp, chain);
         } catch (Throwable t) {
             Logger.e("", t);
@@ -580,20 +606,18 @@ public final class CertHack {
             ).getSubject();
 
             if (algo == Algorithm.EC) {
-                if (size < 1) size = 256;
-                Logger.d("GENERATING EC KEYPAIR OF SIZE " + size);
-                kp = buildECKeyPair(params);
+                Logger.d(() -> "GENERATING EC KEYPAIR OF SIZE " + (size < 1 ? 256 : size));
+                kp = obtainKeyPair(params);
             } else if (algo == Algorithm.RSA) {
-                if (size < 1) size = 2048;
-                Logger.d("GENERATING RSA KEYPAIR OF SIZE " + size);
-                kp = buildRSAKeyPair(params);
+                Logger.d(() -> "GENERATING RSA KEYPAIR OF SIZE " + (size < 1 ? 2048 : size));
+                kp = obtainKeyPair(params);
             } else {
                 Logger.e("UNSUPPORTED ALGORITHM: " + algo);
                 return null;
             }
 
 
-            Logger.d("certificateSubject: " + params.certificateSubject);
+            Logger.d(() -> "certificateSubject: " + params.certificateSubject);
             if (params.certificateSubject == null)
                 params.certificateSubject = X500Name.getInstance(new DERSequence());
             if (params.certificateNotAfter == null)
@@ -625,7 +649,8 @@ public final class CertHack {
             List<Certificate> chain;
             chain = new ArrayList<>();
             chain.add(0, leaf);
-            Logger.d("Successfully generated X500 Cert for alias: " + descriptor.alias);
+            Logger.d(() -> "Successfully generated X500 Cert for alias: " + descriptor.alias);
+            Stats.count(Stats.Counter.KEY_GENERATIONS);
             return new Pair<>(kp, chain);
         } catch (Throwable t) {
             Logger.e("", t);
@@ -634,21 +659,32 @@ public final class CertHack {
         return null;
     }
 
+    private static KeyPair obtainKeyPair(KeyGenParameters params) throws Exception {
+        var kp = KeyPairPool.take(params);
+        if (kp != null) return kp;
+        return buildKeyPair(params);
+    }
+
+    static KeyPair buildKeyPair(KeyGenParameters params) throws Exception {
+        if (params.algorithm == Algorithm.EC) {
+            return buildECKeyPair(params);
+        } else if (params.algorithm == Algorithm.RSA) {
+            return buildRSAKeyPair(params);
+        }
+        throw new IllegalArgumentException("unsupported algorithm " + params.algorithm);
+    }
+
     private static KeyPair buildECKeyPair(KeyGenParameters params) throws Exception {
-        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
-        Security.addProvider(new BouncyCastleProvider());
         ECGenParameterSpec spec = new ECGenParameterSpec(params.ecCurveName);
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("ECDSA", provider);
         kpg.initialize(spec);
         return kpg.generateKeyPair();
     }
 
     private static KeyPair buildRSAKeyPair(KeyGenParameters params) throws Exception {
-        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
-        Security.addProvider(new BouncyCastleProvider());
         RSAKeyGenParameterSpec spec = new RSAKeyGenParameterSpec(
                 params.keySize, params.rsaPublicExponent);
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", BouncyCastleProvider.PROVIDER_NAME);
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", provider);
         kpg.initialize(spec);
         return kpg.generateKeyPair();
     }
@@ -661,99 +697,51 @@ public final class CertHack {
         return result;
     }
 
-    private static Extension createExtension(KeyGenParameters params, int uid) {
+    static Extension createExtension(KeyGenParameters params, int uid) {
         try {
-            byte[] key = UtilKt.getBootKey();
-            byte[] hash = UtilKt.getBootHash();
-
-            ASN1Encodable[] rootOfTrustEncodables = {new DEROctetString(key), ASN1Boolean.TRUE,
-                    new ASN1Enumerated(0), new DEROctetString(hash)};
-
-            ASN1Sequence rootOfTrustSeq = new DERSequence(rootOfTrustEncodables);
-
-            Logger.dd("params.purpose: " + params.purpose);
+            Logger.dd(() -> "params.purpose: " + params.purpose);
 
             var Apurpose = new DERSet(fromIntList(params.purpose));
             var Aalgorithm = new ASN1Integer(params.algorithm);
             var AkeySize = new ASN1Integer(params.keySize);
             var Adigest = new DERSet(fromIntList(params.digest));
             var AecCurve = new ASN1Integer(params.ecCurve);
-            var AnoAuthRequired = DERNull.INSTANCE;
-
-            // To be loaded
-            var AosVersion = new ASN1Integer(UtilKt.getOsVersion());
-            var AosPatchLevel = new ASN1Integer(UtilKt.getPatchLevel());
 
             var AapplicationID = createApplicationId(uid);
-            var AbootPatchlevel = new ASN1Integer(UtilKt.getPatchLevelLong());
-            var AvendorPatchLevel = new ASN1Integer(UtilKt.getPatchLevelLong());
-
             var AcreationDateTime = new ASN1Integer(System.currentTimeMillis());
-            var Aorigin = new ASN1Integer(0);
 
             var purpose = new DERTaggedObject(true, 1, Apurpose);
             var algorithm = new DERTaggedObject(true, 2, Aalgorithm);
             var keySize = new DERTaggedObject(true, 3, AkeySize);
             var digest = new DERTaggedObject(true, 5, Adigest);
             var ecCurve = new DERTaggedObject(true, 10, AecCurve);
-            var noAuthRequired = new DERTaggedObject(true, 503, AnoAuthRequired);
             var creationDateTime = new DERTaggedObject(true, 701, AcreationDateTime);
-            var origin = new DERTaggedObject(true, 702, Aorigin);
-            var rootOfTrust = new DERTaggedObject(true, 704, rootOfTrustSeq);
-            var osVersion = new DERTaggedObject(true, 705, AosVersion);
-            var osPatchLevel = new DERTaggedObject(true, 706, AosPatchLevel);
             var applicationID = new DERTaggedObject(true, 709, AapplicationID);
-            var vendorPatchLevel = new DERTaggedObject(true, 718, AvendorPatchLevel);
-            var bootPatchLevel = new DERTaggedObject(true, 719, AbootPatchlevel);
-
-            var AmoduleHash = new DEROctetString(UtilKt.getModuleHash());
-            var moduleHash = new DERTaggedObject(true, 724, AmoduleHash);
-
-            var arrayList = new ArrayList<>(Arrays.asList(purpose, algorithm, keySize, digest, ecCurve,
-                    noAuthRequired, origin, rootOfTrust, osVersion, osPatchLevel, vendorPatchLevel,
-                    bootPatchLevel, moduleHash));
-
-            // Support device properties attestation
-            if (params.brand != null) {
-                arrayList.addAll(UtilKt.getTelephonyInfos());
-            }
-
-            arrayList.sort(Comparator.comparingInt(ASN1TaggedObject::getTagNo));
 
+            // root of trust, os version, patch levels, module hash and device ids come from the template
+            List<ASN1TaggedObject> teeEnforced = List.of(purpose, algorithm, keySize, digest, ecCurve);
             ASN1Encodable[] softwareEnforced = {applicationID, creationDateTime};
 
-            ASN1OctetString keyDescriptionOctetStr = getAsn1OctetString(arrayList.toArray(new ASN1Encodable[]{}), softwareEnforced, params);
+            ASN1OctetString keyDescriptionOctetStr = AttestationTemplate.get().build(teeEnforced, softwareEnforced,
+                    Objects.requireNonNullElseGet(params.attestationChallenge, () -> new byte[]{}),
+                    // Support device properties attestation
+                    params.brand != null);
 
-            return new Extension(new ASN1ObjectIdentifier("1.3.6.1.4.1.11129.2.1.17"), false, keyDescriptionOctetStr);
+            return new Extension(OID, false, keyDescriptionOctetStr);
         } catch (Throwable t) {
             Logger.e("", t);
         }
         return null;
     }
 
-    private static ASN1OctetString getAsn1OctetString(ASN1Encodable[] teeEnforcedEncodables, ASN1Encodable[] softwareEnforcedEncodables, KeyGenParameters params) throws IOException {
-        ASN1Integer attestationVersion = new ASN1Integer(400);
-        ASN1Enumerated attestationSecurityLevel = new ASN1Enumerated(1);
-        ASN1Integer keymasterVersion = new ASN1Integer(400);
-        ASN1Enumerated keymasterSecurityLevel = new ASN1Enumerated(1);
-        ASN1OctetString attestationChallenge = new DEROctetString(Objects.requireNonNullElseGet(params.attestationChallenge, () -> new byte[]{}));
-        ASN1OctetString uniqueId = new DEROctetString("".getBytes());
-        ASN1Encodable softwareEnforced = new DERSequence(softwareEnforcedEncodables);
-        ASN1Sequence teeEnforced = new DERSequence(teeEnforcedEncodables);
-
-        ASN1Encodable[] keyDescriptionEncodables = {attestationVersion, attestationSecurityLevel, keymasterVersion,
-                keymasterSecurityLevel, attestationChallenge, uniqueId, softwareEnforced, teeEnforced};
-
-        ASN1Sequence keyDescriptionHackSeq = new DERSequence(keyDescriptionEncodables);
-
-        return new DEROctetString(keyDescriptionHackSeq);
-    }
-
     private static DEROctetString createApplicationId(int uid) throws Throwable {
         var pm = Config.INSTANCE.getPm();
         if (pm == null) {
             throw new IllegalStateException("createApplicationId: pm not found!");
         }
+        var cached = ApplicationIdCache.get(uid);
+        if (cached != null) return cached;
+        var generation = ApplicationIdCache.generation();
         var packages = pm.getPackagesForUid(uid);
         var size = packages.length;
         ASN1Encodable[] packageInfoAA = new ASN1Encodable[size];
@@ -785,7 +773,10 @@ public final class CertHack {
         applicationIdAA[ATTESTATION_APPLICATION_ID_SIGNATURE_DIGESTS_INDEX] =
                 new DERSet(signaturesAA);
 
-        return new DEROctetString(new DERSequence(applicationIdAA).getEncoded());
+        var applicationId = new DEROctetString(new DERSequence(applicationIdAA).getEncoded());
+        ApplicationIdCache.put(uid, packages, applicationId, generation);
+        Logger.d(() -> "application id cache: " + ApplicationIdCache.stats());
+        return applicationId;
     }
 
     record Digest(byte[] digest) {
@@ -802,10 +793,64 @@ public final class CertHack {
         }
     }
 
-    record KeyBox(PEMKeyPair pemKeyPair, KeyPair keyPair, List<Certificate> certificates) {
+    static final class KeyBox {
+        final PEMKeyPair pemKeyPair;
+        final KeyPair keyPair;
+        final List<Certificate> certificates;
+        final X500Name issuer;
+        // idle signers per signature algorithm, a signer is reusable once it produced a signature
+        private final Map<String, Queue<ContentSigner>> signers = new ConcurrentHashMap<>();
+        // Encoded once at load and handed out to every response, the arrays must not be modified.
+        // caBlob is the chain concatenated, as keystore1 returns it for CACERT and keystore2 in
+        // certificateChain.
+        final List<byte[]> encodedCertificates;
+        final byte[] caBlob;
+
+        KeyBox(PEMKeyPair pemKeyPair, KeyPair keyPair, List<Certificate> certificates) throws Exception {
+            this.pemKeyPair = pemKeyPair;
+            this.keyPair = keyPair;
+            this.certificates = List.copyOf(certificates);
+            var encoded = new ArrayList<byte[]>(certificates.size());
+            var blob = new ByteArrayOutputStream();
+            for (var certificate : certificates) {
+                var bytes = certificate.getEncoded();
+                encoded.add(bytes);
+                blob.write(bytes);
+            }
+            this.encodedCertificates = List.copyOf(encoded);
+            this.caBlob = blob.toByteArray();
+            this.issuer = new X509CertificateHolder(encodedCertificates.get(0)).getSubject();
+        }
+
+        long encodedBytes() {
+            long bytes = caBlob.length;
+            for (var certificate : encodedCertificates) bytes += certificate.length;
+            return bytes;
+        }
+
+        void prepareSigner(String algorithm) throws OperatorCreationException {
+            idleSigners(algorithm).offer(new JcaContentSignerBuilder(algorithm).build(keyPair.getPrivate()));
+        }
+
+        X509CertificateHolder sign(X509v3CertificateBuilder builder, String algorithm) throws OperatorCreationException {
+            var idle = idleSigners(algorithm);
+            var signer = idle.poll();
+            if (signer == null) {
+                signer = new JcaContentSignerBuilder(algorithm).build(keyPair.getPrivate());
+            }
+            var holder = builder.build(signer);
+            // not returned on failure since the signer may hold a half-written message
+            idle.offer(signer);
+            return holder;
+        }
+
+        // names differ in case between JCA certificates and BC name lookups
+        private Queue<ContentSigner> idleSigners(String algorithm) {
+            return signers.computeIfAbsent(algorithm.toUpperCase(Locale.ROOT), a -> new ConcurrentLinkedQueue<>());
+        }
     }
 
-    public static class KeyGenParameters {
+    public static class KeyGenParameters implements Cloneable {
         public int keySize;
         public int algorithm;
         public BigInteger certificateSerial;
@@ -819,6 +864,7 @@ public final class CertHack {
 
         public List<Integer> purpose = new ArrayList<>();
         public List<Integer> digest = new ArrayList<>();
+        public List<Integer> padding = new ArrayList<>();
 
         public byte[] attestationChallenge;
         public byte[] brand;
@@ -832,9 +878,20 @@ public final class CertHack {
         public KeyGenParameters() {
         }
 
+        /**
+         * Shallow copy, for setting per request fields on shared parameters.
+         */
+        public KeyGenParameters copy() {
+            try {
+                return (KeyGenParameters) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+
         public KeyGenParameters(KeyParameter[] params) {
             for (var kp : params) {
-                Logger.d("kp: " + kp.tag);
+                Logger.d(() -> "kp: " + kp.tag);
                 var p = kp.value;
                 switch (kp.tag) {
                     case Tag.KEY_SIZE -> keySize = p.getInteger();
@@ -854,6 +911,7 @@ public final class CertHack {
                     }
                     case Tag.PURPOSE -> purpose.add(p.getKeyPurpose());
                     case Tag.DIGEST -> digest.add(p.getDigest());
+                    case Tag.PADDING -> padding.add(p.getPaddingMode());
                     case Tag.ATTESTATION_CHALLENGE -> attestationChallenge = p.getBlob();
                     case Tag.ATTESTATION_ID_BRAND -> brand = p.getBlob();
                     case Tag.ATTESTATION_ID_DEVICE -> device = p.getBlob();
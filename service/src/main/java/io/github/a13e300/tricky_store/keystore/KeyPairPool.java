@@ -0,0 +1,174 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import android.hardware.security.keymint.Algorithm;
+import android.os.Process;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.a13e300.tricky_store.Logger;
+
+/**
+ * Keeps a few key pairs of frequently requested shapes generated ahead of time,
+ * so that generateKey on the binder thread does not wait for RSA/EC key generation.
+ * Shapes are configured in devconfig.toml as {@code EC:<curve>} or {@code RSA:<size>[:<exponent>]}.
+ */
+public final class KeyPairPool {
+    private static final String TAG = "KeyPairPool";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        var t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "KeyPairPool");
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static volatile Map<Shape, Slot> slots = Map.of();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private KeyPairPool() {
+    }
+
+    record Shape(int algorithm, int keySize, String ecCurveName, BigInteger rsaPublicExponent) {
+        static Shape of(CertHack.KeyGenParameters params) {
+            if (params.algorithm == Algorithm.EC) {
+                // the curve fully determines an EC key
+                return new Shape(Algorithm.EC, 0, params.ecCurveName, null);
+            }
+            return new Shape(params.algorithm, params.keySize, null, params.rsaPublicExponent);
+        }
+
+        static Shape parse(String spec) {
+            var parts = spec.trim().split(":");
+            if (parts.length == 2 && parts[0].equalsIgnoreCase("EC")) {
+                return new Shape(Algorithm.EC, 0, parts[1], null);
+            } else if ((parts.length == 2 || parts.length == 3) && parts[0].equalsIgnoreCase("RSA")) {
+                var exponent = parts.length == 3 ? new BigInteger(parts[2]) : RSAKeyGenParameterSpec.F4;
+                return new Shape(Algorithm.RSA, Integer.parseInt(parts[1]), null, exponent);
+            }
+            throw new IllegalArgumentException("invalid key pair shape " + spec);
+        }
+
+        CertHack.KeyGenParameters toParams() {
+            var params = new CertHack.KeyGenParameters();
+            params.algorithm = algorithm;
+            params.keySize = keySize;
+            params.ecCurveName = ecCurveName;
+            params.rsaPublicExponent = rsaPublicExponent;
+            return params;
+        }
+
+        @Override
+        public String toString() {
+            if (algorithm == Algorithm.EC) return "EC:" + ecCurveName;
+            return "RSA:" + keySize + ":" + rsaPublicExponent;
+        }
+    }
+
+    private static final class Slot {
+        final Shape shape;
+        final int depth;
+        final Queue<KeyPair> pairs = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicBoolean refilling = new AtomicBoolean();
+
+        Slot(Shape shape, int depth) {
+            this.shape = shape;
+            this.depth = depth;
+        }
+    }
+
+    public static void configure(boolean enabled, Map<String, Integer> depths) {
+        var newSlots = new HashMap<Shape, Slot>();
+        if (enabled) {
+            for (var entry : depths.entrySet()) {
+                if (entry.getValue() == null || entry.getValue() <= 0) continue;
+                try {
+                    var shape = Shape.parse(entry.getKey());
+                    var old = slots.get(shape);
+                    // keep pairs that are already generated if the shape is still wanted
+                    var slot = old != null && old.depth == entry.getValue() ? old : new Slot(shape, entry.getValue());
+                    newSlots.put(shape, slot);
+                } catch (Throwable t) {
+                    Logger.e(TAG, "ignore key pair pool entry " + entry.getKey(), t);
+                }
+            }
+        }
+        slots = Map.copyOf(newSlots);
+        Logger.i(TAG + ": configured " + newSlots.size() + " shapes, " + stats());
+        newSlots.values().forEach(KeyPairPool::scheduleRefill);
+    }
+
+    /**
+     * Pops a ready key pair for the requested shape, or returns null if the shape
+     * is not pooled or the pool is drained. The slot is topped up in background either way.
+     */
+    static KeyPair take(CertHack.KeyGenParameters params) {
+        var slot = slots.get(Shape.of(params));
+        if (slot == null) return null;
+        var kp = slot.pairs.poll();
+        if (kp != null) {
+            slot.size.decrementAndGet();
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        scheduleRefill(slot);
+        Logger.d(() -> TAG + ": take " + slot.shape + (kp != null ? " hit" : " miss") + ", " + stats());
+        return kp;
+    }
+
+    private static void scheduleRefill(Slot slot) {
+        if (slot.size.get() >= slot.depth || slots.get(slot.shape) != slot) return;
+        if (!slot.refilling.compareAndSet(false, true)) return;
+        executor.execute(() -> {
+            boolean done = false;
+            try {
+                while (slot.size.get() < slot.depth && slots.get(slot.shape) == slot) {
+                    var kp = CertHack.buildKeyPair(slot.shape.toParams());
+                    slot.pairs.offer(kp);
+                    slot.size.incrementAndGet();
+                }
+                done = true;
+            } catch (Throwable t) {
+                Logger.e(TAG, "failed to generate key pair for " + slot.shape, t);
+            } finally {
+                slot.refilling.set(false);
+            }
+            // a take may have raced with the end of the loop
+            if (done) scheduleRefill(slot);
+        });
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static String stats() {
+        var sb = new StringBuilder();
+        sb.append("hits=").append(hits.get()).append(" misses=").append(misses.get());
+        for (var slot : slots.values()) {
+            sb.append(' ').append(slot.shape).append('=').append(slot.size.get()).append('/').append(slot.depth);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,180 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads keybox.xml into a typed model in a single pass over the document.
+ */
+public final class KeyboxParser {
+    private KeyboxParser() {
+    }
+
+    public record Document(int numberOfKeyboxes, List<Keybox> keyboxes) {
+        /**
+         * Keys of the first Keybox element only, later ones are ignored.
+         */
+        public List<Key> keys() {
+            return keyboxes.isEmpty() ? List.of() : keyboxes.get(0).keys();
+        }
+    }
+
+    public record Keybox(String deviceId, List<Key> keys) {
+    }
+
+    public record Key(String algorithm, Pem privateKey, List<Pem> certificates, String position) {
+    }
+
+    public record Pem(String text, String position) {
+    }
+
+    public static Document parse(String xml) throws XmlPullParserException, IOException {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(new StringReader(xml));
+
+        int event;
+        while ((event = parser.next()) != XmlPullParser.START_TAG) {
+            if (event == XmlPullParser.END_DOCUMENT) throw error(parser, "missing <AndroidAttestation>");
+        }
+        if (!"AndroidAttestation".equals(parser.getName())) {
+            throw error(parser, "expected <AndroidAttestation> but found <" + parser.getName() + ">");
+        }
+
+        Integer numberOfKeyboxes = null;
+        var keyboxes = new ArrayList<Keybox>();
+        while (nextChild(parser)) {
+            switch (parser.getName()) {
+                case "NumberOfKeyboxes" -> numberOfKeyboxes = readInt(parser);
+                case "Keybox" -> keyboxes.add(readKeybox(parser));
+                default -> skip(parser);
+            }
+        }
+        if (numberOfKeyboxes == null) throw error(parser, "missing <NumberOfKeyboxes>");
+        return new Document(numberOfKeyboxes, keyboxes);
+    }
+
+    private static Keybox readKeybox(XmlPullParser parser) throws XmlPullParserException, IOException {
+        var deviceId = parser.getAttributeValue(null, "DeviceID");
+        var keys = new ArrayList<Key>();
+        while (nextChild(parser)) {
+            if ("Key".equals(parser.getName())) {
+                keys.add(readKey(parser));
+            } else {
+                skip(parser);
+            }
+        }
+        return new Keybox(deviceId, keys);
+    }
+
+    private static Key readKey(XmlPullParser parser) throws XmlPullParserException, IOException {
+        var position = position(parser);
+        var algorithm = parser.getAttributeValue(null, "algorithm");
+        if (algorithm == null) throw error(parser, "missing algorithm of <Key>");
+        Pem privateKey = null;
+        List<Pem> certificates = null;
+        while (nextChild(parser)) {
+            switch (parser.getName()) {
+                case "PrivateKey" -> privateKey = readPem(parser);
+                case "CertificateChain" -> certificates = readCertificateChain(parser);
+                default -> skip(parser);
+            }
+        }
+        if (privateKey == null) throw new XmlPullParserException("missing <PrivateKey> in <Key> at " + position);
+        if (certificates == null || certificates.isEmpty()) {
+            throw new XmlPullParserException("missing <CertificateChain> in <Key> at " + position);
+        }
+        return new Key(algorithm, privateKey, certificates, position);
+    }
+
+    private static List<Pem> readCertificateChain(XmlPullParser parser) throws XmlPullParserException, IOException {
+        var position = position(parser);
+        Integer numberOfCertificates = null;
+        var certificates = new ArrayList<Pem>();
+        while (nextChild(parser)) {
+            switch (parser.getName()) {
+                case "NumberOfCertificates" -> numberOfCertificates = readInt(parser);
+                case "Certificate" -> certificates.add(readPem(parser));
+                default -> skip(parser);
+            }
+        }
+        if (numberOfCertificates == null) return certificates;
+        if (numberOfCertificates > certificates.size()) {
+            throw new XmlPullParserException("expected " + numberOfCertificates + " certificates but found "
+                    + certificates.size() + " in <CertificateChain> at " + position);
+        }
+        return certificates.subList(0, numberOfCertificates);
+    }
+
+    private static Pem readPem(XmlPullParser parser) throws XmlPullParserException, IOException {
+        var position = position(parser);
+        return new Pem(readText(parser), position);
+    }
+
+    private static int readInt(XmlPullParser parser) throws XmlPullParserException, IOException {
+        var name = parser.getName();
+        var position = position(parser);
+        var text = readText(parser).trim();
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new XmlPullParserException("invalid <" + name + "> \"" + text + "\" at " + position);
+        }
+    }
+
+    private static String readText(XmlPullParser parser) throws XmlPullParserException, IOException {
+        var sb = new StringBuilder();
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_TAG) {
+            if (event == XmlPullParser.TEXT) {
+                sb.append(parser.getText());
+            } else if (event == XmlPullParser.START_TAG) {
+                throw error(parser, "unexpected <" + parser.getName() + "> in text content");
+            } else if (event == XmlPullParser.END_DOCUMENT) {
+                throw error(parser, "unexpected end of document");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Moves to the next child element of the current one, returns false once its end tag is reached.
+     */
+    private static boolean nextChild(XmlPullParser parser) throws XmlPullParserException, IOException {
+        while (true) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    return true;
+                case XmlPullParser.END_TAG:
+                    return false;
+                case XmlPullParser.END_DOCUMENT:
+                    throw error(parser, "unexpected end of document");
+            }
+        }
+    }
+
+    private static void skip(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int depth = 1;
+        while (depth != 0) {
+            switch (parser.next()) {
+                case XmlPullParser.END_TAG -> depth--;
+                case XmlPullParser.START_TAG -> depth++;
+                case XmlPullParser.END_DOCUMENT -> throw error(parser, "unexpected end of document");
+            }
+        }
+    }
+
+    private static String position(XmlPullParser parser) {
+        return "line " + parser.getLineNumber() + ", column " + parser.getColumnNumber();
+    }
+
+    private static XmlPullParserException error(XmlPullParser parser, String message) {
+        return new XmlPullParserException(message + " at " + position(parser));
+    }
+}
@@ -91,6 +91,11 @@ public class Utils {
     public static void putCertificateChain(KeyMetadata metadata, Certificate[] chain) throws Throwable {
         if (chain == null || chain.length == 0) return;
         metadata.certificate = chain[0].getEncoded();
+        var encoded = CertHack.encodedCaChain(chain, 1);
+        if (encoded != null) {
+            metadata.certificateChain = encoded;
+            return;
+        }
         var output = new ByteArrayOutputStream();
         for (int i = 1; i < chain.length; i++) {
             output.write(chain[i].getEncoded());
@@ -78,6 +78,13 @@ fun IPackageManager.getPackageInfoCompat(name: String, flags: Long, userId: Int)
         getPackageInfo(name, flags.toInt(), userId)
     }
 
+fun IPackageManager.getPackageUidCompat(name: String, flags: Long, userId: Int) =
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+        getPackageUid(name, flags, userId)
+    } else {
+        getPackageUid(name, flags.toInt(), userId)
+    }
+
 val apexInfos by lazy {
     getPm()?.run {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -18,3 +18,4 @@ rootProject.name = "TrickyStore"
 include(":module")
 include(":service")
 include(":stub")
+include(":benchmark")
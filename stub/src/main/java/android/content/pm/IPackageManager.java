@@ -5,6 +5,10 @@ import android.os.IBinder;
 public interface IPackageManager {
     String[] getPackagesForUid(int uid);
 
+    int getPackageUid(String packageName, long flags, int userId);
+
+    int getPackageUid(String packageName, int flags, int userId);
+
     PackageInfo getPackageInfo(String packageName, long flags, int userId);
 
     PackageInfo getPackageInfo(String packageName, int flags, int userId);
@@ -13,6 +17,8 @@ public interface IPackageManager {
 
     ParceledListSlice<PackageInfo> getInstalledPackages(long flags, int userId);
 
+    ChangedPackages getChangedPackages(int sequenceNumber, int userId);
+
     class Stub {
         public static IPackageManager asInterface(IBinder binder) {
             throw new RuntimeException("");